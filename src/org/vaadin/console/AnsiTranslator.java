@@ -0,0 +1,317 @@
+package org.vaadin.console;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Translates ANSI SGR escape sequences into styled spans.
+ *
+ * The translator keeps its state between calls, so escape sequences and
+ * styles may span several calls to {@link #translate(String)}. Each
+ * translated chunk is self-contained HTML: each run of text is wrapped in its
+ * own span, and runs end at escape sequences and line ends.
+ *
+ * The 16 basic colors, bold and underline map to CSS classes (
+ * <code>ansi-fg1</code>, <code>ansi-b</code>, ...). 256-color and truecolor
+ * values are emitted as inline colors. Other escape sequences are dropped.
+ *
+ */
+public class AnsiTranslator implements Serializable {
+
+    private static final long serialVersionUID = 3106329217922512768L;
+
+    private static final char ESC = '\u001b';
+    private static final int MAX_SEQUENCE_LENGTH = 64;
+    private static final int MAX_PARAMS = 16;
+    private static final int MAX_CACHED_SPANS = 1024;
+
+    private static final String SPAN_END = "</span>";
+
+    // Color values: -1 = default, 0-255 = palette index, RGB | TRUECOLOR
+    private static final int DEFAULT_COLOR = -1;
+    private static final int TRUECOLOR = 0x1000000;
+
+    private static final String[] PALETTE = createPalette();
+
+    private static final int TEXT = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+    private static final char BEL = '\u0007';
+
+    private int fg = DEFAULT_COLOR;
+    private int bg = DEFAULT_COLOR;
+    private boolean bold;
+    private boolean underline;
+
+    // Incomplete escape sequence from the previous chunk
+    private int state = TEXT;
+    private final StringBuilder sequence = new StringBuilder();
+    private final int[] params = new int[MAX_PARAMS];
+
+    private final Map<Long, String> spanCache = new HashMap<Long, String>();
+
+    /**
+     * Translate the next chunk of output.
+     *
+     * @param text
+     * @return the original string if it contains no escape sequences and no
+     *         style is active.
+     */
+    public String translate(final String text) {
+        if (text == null
+                || (state == TEXT && isDefaultStyle() && text.indexOf(ESC) < 0)) {
+            return text;
+        }
+
+        final StringBuilder out = new StringBuilder(text.length() + 32);
+        String span = openSpan();
+        int runStart = 0;
+        final int len = text.length();
+        for (int i = 0; i < len; i++) {
+            final char c = text.charAt(i);
+            if (state == TEXT) {
+                if (c == ESC) {
+                    appendRun(out, text, runStart, i, span);
+                    state = ESCAPE;
+                    sequence.setLength(0);
+                } else if (c == '\n' && span != null) {
+                    // The client renders lines separately
+                    appendRun(out, text, runStart, i, span);
+                    out.append('\n');
+                    runStart = i + 1;
+                }
+            } else if (state == ESCAPE) {
+                // Only CSI sequences are parsed, OSC strings are skipped
+                state = c == '[' ? CSI : (c == ']' ? OSC : TEXT);
+                runStart = i + 1;
+            } else if (state == OSC) {
+                if (c == BEL || c == ESC) {
+                    state = c == ESC ? ESCAPE : TEXT;
+                    runStart = i + 1;
+                }
+            } else if (c >= 0x40 && c <= 0x7e) {
+                // Final byte of a CSI sequence
+                if (c == 'm') {
+                    applySgr();
+                    span = openSpan();
+                }
+                state = TEXT;
+                runStart = i + 1;
+            } else if (sequence.length() < MAX_SEQUENCE_LENGTH) {
+                sequence.append(c);
+            } else {
+                // Garbage, give up on the sequence
+                state = TEXT;
+                runStart = i + 1;
+            }
+        }
+        if (state == TEXT) {
+            appendRun(out, text, runStart, len, span);
+        }
+        return out.toString();
+    }
+
+    private static void appendRun(final StringBuilder out, final String text,
+            final int start, final int end, final String span) {
+        if (start >= end) {
+            return;
+        }
+        if (span == null) {
+            out.append(text, start, end);
+        } else {
+            out.append(span).append(text, start, end).append(SPAN_END);
+        }
+    }
+
+    /**
+     * Reset to the default style and discard any incomplete escape sequence.
+     */
+    public void reset() {
+        resetStyle();
+        state = TEXT;
+        sequence.setLength(0);
+    }
+
+    private void resetStyle() {
+        fg = DEFAULT_COLOR;
+        bg = DEFAULT_COLOR;
+        bold = false;
+        underline = false;
+    }
+
+    private boolean isDefaultStyle() {
+        return fg == DEFAULT_COLOR && bg == DEFAULT_COLOR && !bold
+                && !underline;
+    }
+
+    private void applySgr() {
+        final int count = parseParams();
+        if (count == 0) {
+            resetStyle();
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            final int p = params[i];
+            if (p == 0) {
+                resetStyle();
+            } else if (p == 1) {
+                bold = true;
+            } else if (p == 22) {
+                bold = false;
+            } else if (p == 4) {
+                underline = true;
+            } else if (p == 24) {
+                underline = false;
+            } else if (p >= 30 && p <= 37) {
+                fg = p - 30;
+            } else if (p >= 90 && p <= 97) {
+                fg = p - 90 + 8;
+            } else if (p == 39) {
+                fg = DEFAULT_COLOR;
+            } else if (p >= 40 && p <= 47) {
+                bg = p - 40;
+            } else if (p >= 100 && p <= 107) {
+                bg = p - 100 + 8;
+            } else if (p == 49) {
+                bg = DEFAULT_COLOR;
+            } else if ((p == 38 || p == 48) && i + 1 < count) {
+                int color = DEFAULT_COLOR;
+                if (params[i + 1] == 5 && i + 2 < count) {
+                    color = params[i + 2] & 0xff;
+                    i += 2;
+                } else if (params[i + 1] == 2 && i + 4 < count) {
+                    color = TRUECOLOR | (params[i + 2] & 0xff) << 16
+                            | (params[i + 3] & 0xff) << 8
+                            | (params[i + 4] & 0xff);
+                    i += 4;
+                } else {
+                    i++;
+                }
+                if (p == 38) {
+                    fg = color;
+                } else {
+                    bg = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse the numeric parameters of the collected sequence into
+     * {@link #params}. Empty parameters are zero.
+     *
+     * @return number of parameters
+     */
+    private int parseParams() {
+        final int len = sequence.length();
+        if (len == 0) {
+            return 0;
+        }
+        int count = 0;
+        int value = 0;
+        for (int i = 0; i < len && count < MAX_PARAMS; i++) {
+            final char c = sequence.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (c == ';' || c == ':') {
+                params[count++] = value;
+                value = 0;
+            }
+        }
+        if (count < MAX_PARAMS) {
+            params[count++] = value;
+        }
+        return count;
+    }
+
+    /**
+     * Get the opening tag for the current style.
+     *
+     * @return null for the default style.
+     */
+    private String openSpan() {
+        if (isDefaultStyle()) {
+            return null;
+        }
+        final long key = ((long) (fg & 0x1ffffff) << 27)
+                | ((long) (bg & 0x1ffffff) << 2) | (bold ? 2 : 0)
+                | (underline ? 1 : 0);
+        String span = spanCache.get(key);
+        if (span == null) {
+            if (spanCache.size() >= MAX_CACHED_SPANS) {
+                spanCache.clear();
+            }
+            span = createSpan();
+            spanCache.put(key, span);
+        }
+        return span;
+    }
+
+    private String createSpan() {
+        final StringBuilder cls = new StringBuilder();
+        final StringBuilder style = new StringBuilder();
+        if (fg >= 0 && fg < 16) {
+            cls.append(" ansi-fg").append(fg);
+        } else if (fg != DEFAULT_COLOR) {
+            style.append("color:").append(toCss(fg)).append(';');
+        }
+        if (bg >= 0 && bg < 16) {
+            cls.append(" ansi-bg").append(bg);
+        } else if (bg != DEFAULT_COLOR) {
+            style.append("background-color:").append(toCss(bg)).append(';');
+        }
+        if (bold) {
+            cls.append(" ansi-b");
+        }
+        if (underline) {
+            cls.append(" ansi-u");
+        }
+        final StringBuilder span = new StringBuilder("<span");
+        if (cls.length() > 0) {
+            span.append(" class=\"").append(cls, 1, cls.length()).append('"');
+        }
+        if (style.length() > 0) {
+            span.append(" style=\"").append(style).append('"');
+        }
+        return span.append('>').toString();
+    }
+
+    private static String toCss(final int color) {
+        if ((color & TRUECOLOR) != 0) {
+            return hex(color & 0xffffff);
+        }
+        return PALETTE[color];
+    }
+
+    private static String hex(final int rgb) {
+        final String h = Integer.toHexString(rgb | 0x1000000);
+        return "#" + h.substring(1);
+    }
+
+    /**
+     * Create the xterm 256-color palette as CSS colors.
+     */
+    private static String[] createPalette() {
+        final String[] p = new String[256];
+        final int[] basic = { 0x000000, 0xcd0000, 0x00cd00, 0xcdcd00,
+                0x0000ee, 0xcd00cd, 0x00cdcd, 0xe5e5e5, 0x7f7f7f, 0xff0000,
+                0x00ff00, 0xffff00, 0x5c5cff, 0xff00ff, 0x00ffff, 0xffffff };
+        for (int i = 0; i < 16; i++) {
+            p[i] = hex(basic[i]);
+        }
+        final int[] levels = { 0, 95, 135, 175, 215, 255 };
+        for (int i = 0; i < 216; i++) {
+            final int r = levels[i / 36];
+            final int g = levels[(i / 6) % 6];
+            final int b = levels[i % 6];
+            p[16 + i] = hex(r << 16 | g << 8 | b);
+        }
+        for (int i = 0; i < 24; i++) {
+            final int v = 8 + i * 10;
+            p[232 + i] = hex(v << 16 | v << 8 | v);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,150 @@
+package org.vaadin.console;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cooperative cancellation of a running command.
+ *
+ * When the user interrupts the console, the token of each running command is
+ * cancelled: the thread running the command is interrupted and the cancel
+ * listeners are run. Long running commands should check
+ * {@link #isCancelled()} or call {@link #throwIfCancelled()} regularly, and
+ * register a listener to release resources that do not respond to
+ * interrupts, like processes or sockets.
+ *
+ * @see Console#getCancellationToken()
+ * @see Console#interrupt()
+ */
+public class CancellationToken implements Serializable {
+
+    private static final long serialVersionUID = -2870185716187945432L;
+
+    // Token of the command running in the current thread
+    private static final ThreadLocal<CancellationToken> current = new ThreadLocal<CancellationToken>();
+
+    private volatile boolean cancelled;
+    private transient Thread thread;
+    // Listeners are usually not serializable and belong to the running command
+    private transient List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        listeners = new CopyOnWriteArrayList<Runnable>();
+    }
+
+    /**
+     * Get the token of the command running in the current thread.
+     *
+     * @return null if no command is running in this thread
+     */
+    public static CancellationToken current() {
+        return current.get();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw an exception if the command has been cancelled.
+     *
+     * @throws CancellationException
+     */
+    public void throwIfCancelled() throws CancellationException {
+        if (cancelled) {
+            throw new CancellationException("Interrupted");
+        }
+    }
+
+    /**
+     * Add a listener run when the token is cancelled, in the thread
+     * cancelling it. If the token is already cancelled, the listener is run
+     * immediately.
+     *
+     * @param listener
+     */
+    public void addCancelListener(final Runnable listener) {
+        listeners.add(listener);
+        if (cancelled && listeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    public void removeCancelListener(final Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Cancel the command. Has no effect if already cancelled.
+     */
+    public void cancel() {
+        if (markCancelled()) {
+            runCancelListeners();
+        }
+    }
+
+    /**
+     * Mark the token cancelled and interrupt the command without running the
+     * listeners.
+     *
+     * @return false if already cancelled
+     */
+    synchronized boolean markCancelled() {
+        if (cancelled) {
+            return false;
+        }
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * Run the listeners of a cancelled token.
+     */
+    void runCancelListeners() {
+        for (final Runnable l : listeners) {
+            if (listeners.remove(l)) {
+                l.run();
+            }
+        }
+    }
+
+    /**
+     * Make this the token of the current thread.
+     *
+     * @return the previous token of the thread, for {@link #unbind}
+     */
+    CancellationToken bind() {
+        final CancellationToken previous = current.get();
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        current.set(this);
+        return previous;
+    }
+
+    /**
+     * Detach this token from the current thread and restore the previous
+     * one.
+     *
+     * @param previous
+     */
+    void unbind(final CancellationToken previous) {
+        synchronized (this) {
+            thread = null;
+        }
+        current.set(previous);
+        // The interrupt was meant for the command only
+        if (cancelled && (previous == null || !previous.cancelled)) {
+            Thread.interrupted();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package org.vaadin.console;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vaadin.console.util.TimingWheel;
+
+/**
+ * Executors for running Console commands outside the request thread.
+ *
+ * Executors created here are bounded: when the configured number of running
+ * and waiting commands is reached, further commands are rejected with a
+ * {@link RejectedExecutionException} instead of queuing without limit.
+ * Virtual threads are used when the JVM provides them, otherwise a pool of
+ * daemon threads.
+ *
+ */
+public class CommandExecutors {
+
+    /** Default maximum of concurrently running commands per node. */
+    public static final int DEFAULT_MAX_CONCURRENT = 256;
+
+    /** Default maximum of commands waiting for a pooled thread. */
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final long WATCHDOG_TICK_MILLIS = 50;
+    private static final int WATCHDOG_WHEEL_SIZE = 512;
+    private static final int TASK_THREADS = 4;
+
+    private static Executor shared;
+    private static ThreadPoolExecutor tasks;
+    private static ScheduledExecutorService scheduler;
+    private static TimingWheel watchdog;
+
+    private CommandExecutors() {
+    }
+
+    /**
+     * Get the executor shared by all consoles that have not been given an
+     * executor of their own.
+     *
+     * @return
+     */
+    public static synchronized Executor getShared() {
+        if (shared == null) {
+            shared = newBoundedExecutor(DEFAULT_MAX_CONCURRENT,
+                    DEFAULT_MAX_QUEUED);
+        }
+        return shared;
+    }
+
+    /**
+     * Get the executor for short internal tasks of consoles that take the
+     * application lock, such as repaint requests, timed output flushes and
+     * handling queued input. The tasks do not compete with commands for
+     * threads, so busy commands cannot hold them up. Tasks are queued without
+     * limit.
+     *
+     * @return
+     */
+    public static synchronized Executor getTaskExecutor() {
+        if (tasks == null) {
+            tasks = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new DaemonThreadFactory("console-task-"));
+            tasks.allowCoreThreadTimeOut(true);
+        }
+        return tasks;
+    }
+
+    /**
+     * Get the scheduler for short delayed console tasks, such as flushing
+     * buffered output. It runs tasks in a single daemon thread, so the tasks
+     * must not block.
+     *
+     * @return
+     */
+    public static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            final ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(
+                    1, new DaemonThreadFactory("console-timer-"));
+            s.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            scheduler = s;
+        }
+        return scheduler;
+    }
+
+    /**
+     * Get the watchdog enforcing command timeouts. A single thread tracks
+     * all timeouts of the node with a resolution of
+     * {@value #WATCHDOG_TICK_MILLIS} ms.
+     *
+     * @return
+     */
+    public static synchronized TimingWheel getWatchdog() {
+        if (watchdog == null) {
+            watchdog = new TimingWheel(WATCHDOG_TICK_MILLIS,
+                    TimeUnit.MILLISECONDS, WATCHDOG_WHEEL_SIZE,
+                    new DaemonThreadFactory("console-watchdog-"));
+        }
+        return watchdog;
+    }
+
+    /**
+     * Stop the shared executors, the scheduler and the watchdog. Running
+     * commands are interrupted and pending tasks are discarded. Call this
+     * when the web application stops, see {@link ConsoleContextListener};
+     * otherwise the threads keep the classes of the application loaded. The
+     * getters create new ones if called afterwards.
+     */
+    public static synchronized void shutdown() {
+        if (shared instanceof BoundedExecutor) {
+            ((BoundedExecutor) shared).shutdownNow();
+        }
+        shared = null;
+        if (tasks != null) {
+            tasks.shutdownNow();
+            tasks = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (watchdog != null) {
+            watchdog.stop();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * Create a new bounded executor.
+     *
+     * With virtual threads every accepted command gets a thread of its own and
+     * at most <code>maxConcurrent</code> commands are accepted at a time.
+     * Otherwise <code>maxConcurrent</code> pooled threads are used and at most
+     * <code>maxQueued</code> commands wait for a free thread.
+     *
+     * @param maxConcurrent
+     * @param maxQueued
+     * @return
+     */
+    public static Executor newBoundedExecutor(final int maxConcurrent,
+            final int maxQueued) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        final Executor virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            return new BoundedExecutor(virtual, maxConcurrent);
+        }
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent,
+                maxConcurrent, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory(
+                        "console-command-"));
+        pool.allowCoreThreadTimeOut(true);
+        return new BoundedExecutor(pool, maxConcurrent
+                + Math.max(0, maxQueued));
+    }
+
+    /**
+     * Check if the running JVM supports virtual threads.
+     *
+     * @return
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return getVirtualThreadFactoryMethod() != null;
+    }
+
+    private static Executor newVirtualThreadExecutor() {
+        final Method m = getVirtualThreadFactoryMethod();
+        if (m != null) {
+            try {
+                return (Executor) m.invoke(null);
+            } catch (final Exception e) {
+                // Fall back to platform threads
+            }
+        }
+        return null;
+    }
+
+    private static Method getVirtualThreadFactoryMethod() {
+        try {
+            return java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (final NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executor limiting the number of accepted but unfinished tasks.
+     */
+    private static class BoundedExecutor implements Executor {
+
+        private final Executor delegate;
+        private final Semaphore permits;
+
+        BoundedExecutor(final Executor delegate, final int limit) {
+            this.delegate = delegate;
+            permits = new Semaphore(limit);
+        }
+
+        void shutdownNow() {
+            if (delegate instanceof ExecutorService) {
+                ((ExecutorService) delegate).shutdownNow();
+            }
+        }
+
+        public void execute(final Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException(
+                        "Too many commands running");
+            }
+            try {
+                delegate.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.vaadin.console;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.vaadin.console.util.LatencyHistogram;
+
+/**
+ * Invocation counts, failures, latencies and output sizes per command.
+ *
+ * Consoles record to the shared instance unless given one of their own with
+ * {@link Console#setCommandMetrics(CommandMetrics)}. The shared instance is
+ * registered as the MBean <code>org.vaadin.console:type=CommandMetrics</code>
+ * and {@link StatsCommand} prints the statistics in a console. The MBean is
+ * unregistered by {@link ConsoleContextListener} when the web application
+ * stops.
+ *
+ */
+public class CommandMetrics implements CommandMetricsMBean, Serializable {
+
+    private static final long serialVersionUID = -3040735755359016226L;
+
+    /** Name of the MBean of the shared instance. */
+    public static final String SHARED_MBEAN_NAME = "org.vaadin.console:type=CommandMetrics";
+
+    private static CommandMetrics shared;
+
+    // Statistics of the command running in the current thread
+    private static final ThreadLocal<Stats> current = new ThreadLocal<Stats>();
+
+    /**
+     * Statistics of a single command.
+     */
+    public static class Stats implements Serializable {
+
+        private static final long serialVersionUID = 8143926204771935124L;
+
+        private final String name;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong outputBytes = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Stats(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getInvocations() {
+            return invocations.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Get the number of UTF-8 bytes the command has printed.
+         *
+         * @return
+         */
+        public long getOutputBytes() {
+            return outputBytes.get();
+        }
+
+        /**
+         * Get the execution times of the command.
+         *
+         * @return
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        void reset() {
+            invocations.set(0);
+            failures.set(0);
+            outputBytes.set(0);
+            latency.reset();
+        }
+    }
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final AtomicLong notFound = new AtomicLong();
+
+    /**
+     * Get the metrics shared by all consoles without metrics of their own.
+     * The shared instance is registered to the platform MBean server when
+     * possible.
+     *
+     * @return
+     */
+    public static synchronized CommandMetrics getShared() {
+        if (shared == null) {
+            shared = new CommandMetrics();
+            try {
+                shared.registerMBean(SHARED_MBEAN_NAME);
+            } catch (final JMException e) {
+                // Metrics are still available through the API
+            } catch (final SecurityException e) {
+                // Same as above
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Unregister the MBean of the shared instance and discard the instance.
+     * Otherwise the MBean keeps the classes of a stopped web application
+     * loaded, and a redeployed application cannot register its own.
+     */
+    public static synchronized void releaseShared() {
+        if (shared == null) {
+            return;
+        }
+        try {
+            shared.unregisterMBean(SHARED_MBEAN_NAME);
+        } catch (final JMException e) {
+            // Not registered
+        } catch (final SecurityException e) {
+            // Same as above
+        }
+        shared = null;
+    }
+
+    /**
+     * Register this instance to the platform MBean server.
+     *
+     * @param objectName
+     * @throws JMException
+     */
+    public void registerMBean(final String objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(objectName);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Unregister an MBean registered with
+     * {@link #registerMBean(String)}.
+     *
+     * @param objectName
+     * @throws JMException
+     */
+    public void unregisterMBean(final String objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(objectName);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    /**
+     * Get the statistics of a command.
+     *
+     * @param command
+     * @return null if the command has not been run
+     */
+    public Stats getStats(final String command) {
+        return stats.get(command);
+    }
+
+    /**
+     * Get the statistics of all commands that have been run.
+     *
+     * @return
+     */
+    public List<Stats> getAllStats() {
+        return new ArrayList<Stats>(stats.values());
+    }
+
+    /**
+     * Start timing a command in the current thread.
+     *
+     * @param command
+     * @return the statistics of the enclosing command, for
+     *         {@link #finished(Stats, long, boolean)}
+     */
+    Stats started(final String command) {
+        Stats s = stats.get(command);
+        if (s == null) {
+            s = new Stats(command);
+            final Stats existing = stats.putIfAbsent(command, s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        final Stats enclosing = current.get();
+        current.set(s);
+        return enclosing;
+    }
+
+    void finished(final Stats enclosing, final long nanos,
+            final boolean failed) {
+        final Stats s = current.get();
+        current.set(enclosing);
+        if (s != null) {
+            s.invocations.incrementAndGet();
+            if (failed) {
+                s.failures.incrementAndGet();
+            }
+            s.latency.record(nanos);
+        }
+    }
+
+    /**
+     * Count output of the command running in the current thread.
+     *
+     * @param output
+     */
+    static void printed(final String output) {
+        final Stats s = current.get();
+        if (s != null && output != null) {
+            s.outputBytes.addAndGet(utf8Length(output));
+        }
+    }
+
+    void commandNotFound() {
+        notFound.incrementAndGet();
+    }
+
+    private static long utf8Length(final String s) {
+        long n = 0;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Format statistics as a table, slowest 99th percentile first.
+     *
+     * @param list
+     * @return
+     */
+    public static String format(final List<Stats> list) {
+        final List<Stats> sorted = new ArrayList<Stats>(list);
+        Collections.sort(sorted, new Comparator<Stats>() {
+
+            public int compare(final Stats a, final Stats b) {
+                final long pa = a.latency.getPercentile(99);
+                final long pb = b.latency.getPercentile(99);
+                return pa < pb ? 1 : (pa > pb ? -1 : a.name.compareTo(b.name));
+            }
+        });
+        final StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%-16s %8s %6s %9s %9s %9s %9s %10s", "command", "count",
+                "fail", "p50 ms", "p90 ms", "p99 ms", "max ms", "bytes"));
+        for (final Stats s : sorted) {
+            final LatencyHistogram h = s.latency;
+            sb.append('\n').append(
+                    String.format(Locale.US,
+                            "%-16s %8d %6d %9.3f %9.3f %9.3f %9.3f %10d",
+                            s.name, s.getInvocations(), s.getFailures(),
+                            h.getPercentile(50) / 1000.0,
+                            h.getPercentile(90) / 1000.0,
+                            h.getPercentile(99) / 1000.0, h.getMax() / 1000.0,
+                            s.getOutputBytes()));
+        }
+        return sb.toString();
+    }
+
+    /* CommandMetricsMBean */
+
+    public String[] getCommandNames() {
+        final List<String> names = new ArrayList<String>(stats.keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    public long getNotFoundCount() {
+        return notFound.get();
+    }
+
+    public long getInvocationCount() {
+        long n = 0;
+        for (final Stats s : stats.values()) {
+            n += s.getInvocations();
+        }
+        return n;
+    }
+
+    public long getFailureCount() {
+        long n = 0;
+        for (final Stats s : stats.values()) {
+            n += s.getFailures();
+        }
+        return n;
+    }
+
+    public long getInvocations(final String command) {
+        final Stats s = stats.get(command);
+        return s != null ? s.getInvocations() : 0;
+    }
+
+    public long getFailures(final String command) {
+        final Stats s = stats.get(command);
+        return s != null ? s.getFailures() : 0;
+    }
+
+    public double getLatencyPercentileMillis(final String command,
+            final double percentile) {
+        final Stats s = stats.get(command);
+        return s != null ? s.latency.getPercentile(percentile) / 1000.0 : 0;
+    }
+
+    public long getOutputBytes(final String command) {
+        final Stats s = stats.get(command);
+        return s != null ? s.getOutputBytes() : 0;
+    }
+
+    public String getSummary() {
+        return format(getAllStats());
+    }
+
+    public void reset() {
+        for (final Stats s : stats.values()) {
+            s.reset();
+        }
+        notFound.set(0);
+    }
+
+    /**
+     * Console command printing the metrics of the console it runs in. Usage:
+     * <code>stats [command...]</code> or <code>stats reset</code>.
+     */
+    public static class StatsCommand implements Console.Command {
+
+        private static final long serialVersionUID = -5521474286473150373L;
+
+        public Object execute(final Console console, final String[] argv)
+                throws Exception {
+            final CommandMetrics metrics = console.getCommandMetrics();
+            if (argv.length == 2 && "reset".equals(argv[1])) {
+                metrics.reset();
+                return "Statistics cleared.";
+            }
+            List<Stats> list;
+            if (argv.length > 1) {
+                list = new ArrayList<Stats>();
+                for (int i = 1; i < argv.length; i++) {
+                    final Stats s = metrics.getStats(argv[i]);
+                    if (s != null) {
+                        list.add(s);
+                    }
+                }
+            } else {
+                list = metrics.getAllStats();
+            }
+            return format(list) + "\nnot found: "
+                    + metrics.getNotFoundCount();
+        }
+
+        public String getUsage(final Console console, final String[] argv) {
+            return "[command...] | reset";
+        }
+    }
+}
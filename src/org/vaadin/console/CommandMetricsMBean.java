@@ -0,0 +1,52 @@
+package org.vaadin.console;
+
+/**
+ * Management interface of {@link CommandMetrics}. Latencies are in
+ * milliseconds.
+ *
+ */
+public interface CommandMetricsMBean {
+
+    /**
+     * Get the names of the commands that have been run.
+     *
+     * @return
+     */
+    String[] getCommandNames();
+
+    long getInvocationCount();
+
+    long getFailureCount();
+
+    /**
+     * Get the number of inputs naming a command that does not exist.
+     *
+     * @return
+     */
+    long getNotFoundCount();
+
+    long getInvocations(String command);
+
+    long getFailures(String command);
+
+    /**
+     * Get the execution time of a command at the given percentile.
+     *
+     * @param command
+     * @param percentile
+     *            between 0 and 100
+     * @return
+     */
+    double getLatencyPercentileMillis(String command, double percentile);
+
+    long getOutputBytes(String command);
+
+    /**
+     * Get all statistics as a table.
+     *
+     * @return
+     */
+    String getSummary();
+
+    void reset();
+}
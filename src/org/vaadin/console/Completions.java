@@ -0,0 +1,115 @@
+package org.vaadin.console;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Collects argument completions from a {@link Console.ArgumentCompleter}.
+ * 
+ * Completers may add any candidates; only the ones starting with the prefix
+ * being completed are kept. The collection is closed when the completion
+ * time budget runs out, after which candidates are no longer accepted and
+ * the ones added so far are used.
+ * 
+ */
+public class Completions implements Serializable {
+
+    private static final long serialVersionUID = -1519270431837062452L;
+
+    private final String prefix;
+    private final int limit;
+    private final Set<String> results = new TreeSet<String>();
+    private volatile boolean closed;
+    private volatile boolean truncated;
+
+    public Completions(final String prefix, final int limit) {
+        this.prefix = prefix != null ? prefix : "";
+        this.limit = limit;
+    }
+
+    /**
+     * Get the beginning of the argument being completed.
+     * 
+     * @return
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Add a candidate. Candidates not starting with the prefix are ignored.
+     * 
+     * @param candidate
+     * @return false if no more candidates are accepted and the completer
+     *         should stop
+     */
+    public boolean add(final String candidate) {
+        if (closed) {
+            return false;
+        }
+        if (candidate == null || !candidate.startsWith(prefix)) {
+            return true;
+        }
+        synchronized (results) {
+            if (results.size() >= limit) {
+                truncated = true;
+                return false;
+            }
+            results.add(candidate);
+        }
+        return true;
+    }
+
+    /**
+     * Add candidates.
+     * 
+     * @param candidates
+     * @return false if no more candidates are accepted and the completer
+     *         should stop
+     */
+    public boolean addAll(final Collection<String> candidates) {
+        for (final String c : candidates) {
+            if (!add(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the time budget has run out. Slow completers should check
+     * this periodically and stop.
+     * 
+     * @return
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Check if candidates were dropped because the limit was reached.
+     * 
+     * @return
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Get the candidates added so far, in sorted order.
+     * 
+     * @return
+     */
+    public Set<String> getResults() {
+        synchronized (results) {
+            return Collections.unmodifiableSet(new TreeSet<String>(results));
+        }
+    }
+}
@@ -1,21 +1,45 @@
 package org.vaadin.console;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
-
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.vaadin.console.util.BKTree;
+import org.vaadin.console.util.CommandIndex;
+import org.vaadin.console.util.ScrollbackBuffer;
 import org.vaadin.console.util.ServerCommUtils;
 import org.vaadin.console.util.ServerCommUtils.CallableComponent;
+import org.vaadin.console.util.ServerCommUtils.OverflowPolicy;
+import org.vaadin.console.util.TimingWheel;
+import org.vaadin.console.util.TokenBucket;
 
+import com.vaadin.Application;
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
 import com.vaadin.ui.AbstractComponent;
@@ -43,6 +67,22 @@ public class Console extends AbstractComponent implements Component.Focusable {
     private static final int DEFAULT_ROWS = -1;
     private static final boolean DEFAULT_WRAP = true;
     private static final int MAX_COLS = 500;
+    private static final int DEFAULT_SUGGESTION_COLS = 80;
+    private static final int SUGGESTION_SPACING = 2;
+    private static final int MAX_LISTED_SUGGESTIONS = 1000;
+    private static final long DEFAULT_COMPLETION_TIMEOUT = 200;
+    private static final int MAX_COMPLETIONS = 10000;
+    private static final int SHORT_COMMAND_LENGTH = 4;
+    private static final int MAX_SIMILAR_COMMANDS = 3;
+    private static final int MAX_QUEUED_INPUT = 32;
+    private static final String INTERRUPTED_MESSAGE = "^C";
+    private static final int MAX_JOBS = 16;
+    private static final String BACKGROUND_SUFFIX = "&";
+    private static final String TRIGGER_PREFIX = "trigger:";
+
+    private static final String DEFAULT_RATE_LIMIT_MESSAGE = "Too many commands. Slow down.";
+    private static final Charset PRINT_STREAM_CHARSET = Charset
+            .forName("UTF-8");
     private static final int MAX_ROWS = 200;
 
     private final Set<String> commandAliases = new HashSet<String>();
@@ -68,8 +108,9 @@ public class Console extends AbstractComponent implements Component.Focusable {
         private static final long serialVersionUID = 3992611573500588703L;
 
         public void clientCalls(final String method, final Object[] params) {
-            // TODO Auto-generated method stub
-
+            if ("interrupt".equals(method)) {
+                interrupt();
+            }
         }
 
         public void clientRequestedInit() {
@@ -79,7 +120,13 @@ public class Console extends AbstractComponent implements Component.Focusable {
         }
 
         public void requestRepaint() {
-            Console.this.requestRepaint();
+            // Repaints must be requested with the application lock held
+            final Application app = getApplication();
+            if (app == null || Thread.holdsLock(app)) {
+                Console.this.requestRepaint();
+            } else {
+                requestRepaintLater(app);
+            }
         }
 
     }
@@ -92,9 +139,35 @@ public class Console extends AbstractComponent implements Component.Focusable {
     private Integer fontw;
     @SuppressWarnings("unused")
     private Integer fonth;
-    private PrintStream printStream;
+    private transient PrintStream printStream;
     private String lastSuggestInput;
     private List<CommandProvider> commandProviders;
+    private boolean asyncExecution;
+    private transient Executor commandExecutor;
+    // Running commands do not survive serialization, see readObject
+    private transient AtomicInteger runningCommands = new AtomicInteger();
+    private final AtomicBoolean repaintPending = new AtomicBoolean();
+    private volatile AnsiTranslator ansiTranslator;
+    private final TriggerEngine triggers = new TriggerEngine();
+    private transient volatile CommandCache commandCache;
+    private boolean abbreviationsEnabled;
+    private long completionTimeout = DEFAULT_COMPLETION_TIMEOUT;
+    private transient volatile SuggestionCache suggestionCache;
+    private transient CommandMetrics metrics;
+    // Rate limit state is guarded by the input queue
+    private final LinkedList<String> queuedInput = new LinkedList<String>();
+    private RateLimit inputLimit;
+    private Map<String, RateLimit> commandLimits;
+    private String rateLimitMessage = DEFAULT_RATE_LIMIT_MESSAGE;
+    private transient boolean drainScheduled;
+    private transient long drainAt;
+    private transient Set<CancellationToken> runningTokens = newTokenSet();
+    private transient Map<Integer, Job> jobs = new TreeMap<Integer, Job>();
+    // Job whose command is running in the current thread
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+    private boolean jobControlEnabled;
+    private volatile long commandTimeout;
+    private final Map<String, Long> commandTimeouts = new ConcurrentHashMap<String, Long>();
 
     /**
      * An inner class for holding the configuration data.
@@ -141,12 +214,15 @@ public class Console extends AbstractComponent implements Component.Focusable {
         void inputReceived(Console console, String lastInput);
 
         /**
-         * Handle an exception during a Command execution.
+         * Handle an exception during a Command execution, or an
+         * {@link InputSyntaxException} when the input could not be parsed.
          * 
          * @param console
          * @param e
          * @param cmd
+         *            null if the input could not be parsed
          * @param argv
+         *            null if the input could not be parsed
          */
         void handleException(Console console, Exception e, Command cmd,
                 String[] argv);
@@ -167,6 +243,11 @@ public class Console extends AbstractComponent implements Component.Focusable {
      * method that that can be executed in Component. It can have parameters or
      * not.
      * 
+     * With asynchronous execution commands run without the application lock.
+     * Printing to the console is safe from any thread; other changes to the
+     * user interface must be made while synchronized on the application.
+     * 
+     * @see Console#setAsyncExecution(boolean)
      */
     public interface Command extends Serializable {
 
@@ -190,6 +271,30 @@ public class Console extends AbstractComponent implements Component.Focusable {
         public String getUsage(Console console, String[] argv);
     }
 
+    /**
+     * A Command that can complete its arguments. Completion runs in the
+     * command executor and is cut off when the completion timeout expires.
+     * 
+     * @see Console#setCompletionTimeout(long)
+     */
+    public interface ArgumentCompleter extends Serializable {
+
+        /**
+         * Add completions for the next argument to the given collection.
+         * 
+         * @param console
+         * @param argv
+         *            command name and the arguments before the one being
+         *            completed
+         * @param completions
+         *            candidates are added here, see
+         *            {@link Completions#getPrefix()}
+         * @throws Exception
+         */
+        void complete(Console console, String[] argv, Completions completions)
+                throws Exception;
+    }
+
     /**
      * Interface for providing Commands to the console. One can register a
      * command providers to console instead of individual commands to provide a
@@ -217,11 +322,218 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
     }
 
+    /**
+     * A CommandProvider that reports when its commands change. The console
+     * caches the command names and the commands resolved from a versioned
+     * provider until its version changes. Commands of other providers are
+     * resolved on every call. Their names are queried again for completion
+     * and {@link Console#getCommandIndex()}, and the index is rebuilt only
+     * if they differ; abbreviations of their commands are resolved with the
+     * names seen last.
+     * 
+     */
+    public interface VersionedCommandProvider extends CommandProvider {
+
+        /**
+         * Get the version of the available commands. The version must change
+         * whenever the result of {@link #getAvailableCommands(Console)} or
+         * {@link #getCommand(Console, String)} changes.
+         * 
+         * @param console
+         * @return
+         */
+        long getVersion(Console console);
+    }
+
+    /**
+     * What to do with input over a rate limit.
+     */
+    public enum RateLimitPolicy {
+
+        /** Run the input when the limit allows. */
+        QUEUE,
+
+        /** Ignore the input. */
+        DROP,
+
+        /** Ignore the input and print the rate limit message. */
+        REJECT
+    }
+
+    private static class RateLimit implements Serializable {
+
+        private static final long serialVersionUID = 2604735591733140962L;
+
+        final TokenBucket bucket;
+        final RateLimitPolicy policy;
+
+        RateLimit(final double perSecond, final int burst,
+                final RateLimitPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("Policy must not be null");
+            }
+            bucket = new TokenBucket(perSecond, burst);
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Complete set of argument completions for a prefix. A longer prefix of
+     * the same argument is completed by filtering the set.
+     */
+    private static class SuggestionCache {
+
+        private final CommandCache commands;
+        private final Command cmd;
+        private final String[] argv;
+        private final String prefix;
+        private final NavigableSet<String> results;
+
+        SuggestionCache(final CommandCache commands, final Command cmd,
+                final String[] argv, final String prefix,
+                final NavigableSet<String> results) {
+            this.commands = commands;
+            this.cmd = cmd;
+            this.argv = argv;
+            this.prefix = prefix;
+            this.results = results;
+        }
+
+        boolean covers(final CommandCache commands, final Command cmd,
+                final String[] argv, final String prefix) {
+            return this.commands == commands && this.cmd == cmd
+                    && prefix.startsWith(this.prefix)
+                    && Arrays.equals(this.argv, argv);
+        }
+
+        NavigableSet<String> narrow(final String prefix) {
+            if (prefix.equals(this.prefix)) {
+                return results;
+            }
+            // All strings starting with prefix sort within this range
+            return results.subSet(prefix, true, prefix + Character.MAX_VALUE,
+                    true);
+        }
+    }
+
+    /**
+     * Command names and provider bindings cached for the provider versions
+     * and the names of unversioned providers at the time of creation.
+     */
+    private static class CommandCache {
+
+        private final CommandProvider[] providers;
+        private final long[] versions;
+        // Resolved commands of versioned providers, null for others
+        private final List<Map<String, Command>> bindings;
+        // Names of unversioned providers, null for versioned ones
+        private final List<Set<String>> providerNames;
+        private final CommandIndex index;
+        private volatile BKTree similar;
+
+        CommandCache(final Console console) {
+            providers = console.commandProviders == null ? new CommandProvider[0]
+                    : console.commandProviders
+                            .toArray(new CommandProvider[0]);
+            versions = new long[providers.length];
+            bindings = new ArrayList<Map<String, Command>>(providers.length);
+            providerNames = new ArrayList<Set<String>>(providers.length);
+
+            // Versions are read first, so concurrent changes are not missed
+            for (int i = 0; i < providers.length; i++) {
+                if (providers[i] instanceof VersionedCommandProvider) {
+                    versions[i] = ((VersionedCommandProvider) providers[i])
+                            .getVersion(console);
+                    bindings.add(new ConcurrentHashMap<String, Command>());
+                } else {
+                    bindings.add(null);
+                }
+            }
+            final Set<String> names = new HashSet<String>();
+            for (int i = 0; i < providers.length; i++) {
+                final Set<String> available = getAvailableCommands(console,
+                        providers[i]);
+                providerNames.add(bindings.get(i) == null ? available : null);
+                names.addAll(available);
+            }
+            names.addAll(console.commands.keySet());
+            index = new CommandIndex(names);
+        }
+
+        BKTree getSimilar() {
+            BKTree tree = similar;
+            if (tree == null) {
+                tree = new BKTree(index.getAll());
+                similar = tree;
+            }
+            return tree;
+        }
+
+        /**
+         * Check the versions of the versioned providers.
+         */
+        boolean isCurrent(final Console console) {
+            for (int i = 0; i < providers.length; i++) {
+                if (bindings.get(i) != null
+                        && versions[i] != ((VersionedCommandProvider) providers[i])
+                                .getVersion(console)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Check the names of the unversioned providers. Each provider is
+         * asked for all its names, so this is not done when executing.
+         */
+        boolean hasCurrentNames(final Console console) {
+            for (int i = 0; i < providers.length; i++) {
+                if (bindings.get(i) == null) {
+                    // Compared without copying, usually equal
+                    final Set<String> names = providers[i]
+                            .getAvailableCommands(console);
+                    if (!providerNames.get(i).equals(
+                            names != null ? names : Collections.emptySet())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static Set<String> getAvailableCommands(
+                final Console console, final CommandProvider provider) {
+            final Set<String> names = provider.getAvailableCommands(console);
+            return names != null ? new HashSet<String>(names) : Collections
+                    .<String> emptySet();
+        }
+
+        Command getCommand(final Console console, final String cmdName) {
+            for (int i = 0; i < providers.length; i++) {
+                final Map<String, Command> b = bindings.get(i);
+                Command cmd = b != null && cmdName != null ? b.get(cmdName)
+                        : null;
+                if (cmd == null) {
+                    cmd = providers[i].getCommand(console, cmdName);
+                    if (cmd != null && b != null && cmdName != null) {
+                        b.put(cmdName, cmd);
+                    }
+                }
+                if (cmd != null) {
+                    return cmd;
+                }
+            }
+            return null;
+        }
+    }
+
     public void addCommandProvider(final CommandProvider commandProvider) {
         if (commandProviders == null) {
             commandProviders = new ArrayList<CommandProvider>();
         }
         commandProviders.add(commandProvider);
+        invalidateCommandIndex();
     }
 
     public void removeCommandProvider(final CommandProvider commandProvider) {
@@ -229,6 +541,7 @@ public class Console extends AbstractComponent implements Component.Focusable {
             return;
         }
         commandProviders.remove(commandProvider);
+        invalidateCommandIndex();
     }
 
     public void removeAllCommandProviders() {
@@ -236,6 +549,7 @@ public class Console extends AbstractComponent implements Component.Focusable {
             return;
         }
         commandProviders.clear();
+        invalidateCommandIndex();
     }
 
     public Console(final Console.Handler handler) {
@@ -246,6 +560,32 @@ public class Console extends AbstractComponent implements Component.Focusable {
     public Console() {
         setImmediate(true);
         setHandler(new DefaultConsoleHandler());
+        client.addLimitedMethod("print");
+        client.setCoalescedMethod("print");
+        client.setSuppressionMarkerMethod("println");
+        client.addReplayLineBreakMethod("newLine");
+        client.addReplayClearingMethod("reset");
+        client.addReplayClearingMethod("clearBuffer");
+        for (final String setter : new String[] { "setCols", "setRows",
+                "setPs", "setWrap", "setMaxBufferSize", "setGreeting" }) {
+            client.addReplaceableMethod(setter);
+        }
+    }
+
+    private static Set<CancellationToken> newTokenSet() {
+        return Collections
+                .newSetFromMap(new ConcurrentHashMap<CancellationToken, Boolean>());
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        // Commands and jobs running when the session was serialized are not
+        // running in this copy
+        runningCommands = new AtomicInteger();
+        runningTokens = newTokenSet();
+        jobs = new TreeMap<Integer, Job>();
+        repaintPending.set(false);
     }
 
     @Override
@@ -280,7 +620,9 @@ public class Console extends AbstractComponent implements Component.Focusable {
         }
         if (variables.containsKey("input")) {
             lastInput = (String) variables.get("input");
-            handleInput(lastInput);
+            if (admitInput(lastInput)) {
+                handleInput(lastInput);
+            }
         }
         if (variables.containsKey("suggest")) {
             final String suggest = (String) variables.get("suggest");
@@ -303,44 +645,23 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
         // Output the original
         final String prefix = parseCommandPrefix(input);
-        String output = input.substring(0, input.lastIndexOf(prefix));
+        String output = input.substring(0, getCommandPrefixStart(input));
         if (matches.size() == 1) {
             // Output the only match
-            output += matches.iterator().next() + " "; // append the single
-            // match
+            output += quoteArgument(matches.iterator().next(), true) + " ";
         } else {
 
-            // We output until the common prefix
-            StringBuilder commonPrefix = new StringBuilder(prefix);
-            final int maxLen = matches.iterator().next().length();
-            for (int i = prefix.length(); i < maxLen; i++) {
-                char c = 0;
-                boolean charMatch = true;
-                for (final String m : matches) {
-                    if (c == 0) {
-                        c = m.charAt(i);
-                    } else if (i < m.length()) {
-                        charMatch &= m.charAt(i) == c;
-                        if (!charMatch) {
-                            break;
-                        }
-                    } else {
-                        charMatch = false;
-                        break;
-                    }
-                }
-                if (charMatch) {
-                    commonPrefix.append(c);
-                }
-            }
-            output += commonPrefix.toString();
-            if (prefix.equals(commonPrefix.toString())
-                    && !cancelIfNotASingleMatch) {
-                final StringBuffer suggestions = new StringBuffer("\n");
-                for (final String m : matches) {
-                    suggestions.append(" " + m);
-                }
-                print(suggestions.toString());
+            // Sorting puts the most different matches first and last, so
+            // their common prefix is common to all of them
+            final String[] sorted = matches.toArray(new String[matches
+                    .size()]);
+            Arrays.sort(sorted);
+            final String commonPrefix = commonPrefix(sorted[0],
+                    sorted[sorted.length - 1], prefix);
+            // Left open, the user continues typing the argument
+            output += quoteArgument(commonPrefix, false);
+            if (prefix.equals(commonPrefix) && !cancelIfNotASingleMatch) {
+                print(formatColumns(sorted));
             } else {
                 bell();
                 lastSuggestInput = output; // next suggest will not beep
@@ -351,6 +672,187 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
     }
 
+    /**
+     * Quote and escape an argument so that {@link #parseInput(String)}
+     * returns it unchanged.
+     * 
+     * @param arg
+     * @param close
+     *            false to leave a quote open
+     * @return the argument itself if it needs no quoting
+     */
+    protected static String quoteArgument(final String arg, final boolean close) {
+        boolean quote = false;
+        boolean escape = false;
+        final int len = arg.length();
+        for (int i = 0; i < len; i++) {
+            final char c = arg.charAt(i);
+            if (Character.isWhitespace(c)) {
+                quote = true;
+            } else if (c == '"' || c == '\\') {
+                escape = true;
+            }
+        }
+        if (!quote && !escape) {
+            return arg;
+        }
+        final StringBuilder sb = new StringBuilder(len + 8);
+        if (quote) {
+            sb.append('"');
+        }
+        for (int i = 0; i < len; i++) {
+            final char c = arg.charAt(i);
+            // A backslash is literal unless a quote or backslash follows
+            final char next = i + 1 < len ? arg.charAt(i + 1) : (quote ? '"'
+                    : ' ');
+            if (c == '"' || (c == '\\' && (next == '"' || next == '\\'))) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        if (quote && close) {
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String commonPrefix(final String first,
+            final String last, final String prefix) {
+        final int max = Math.min(first.length(), last.length());
+        int i = 0;
+        while (i < max && first.charAt(i) == last.charAt(i)) {
+            i++;
+        }
+        // Never shorten what the user has typed
+        return i > prefix.length() ? first.substring(0, i) : prefix;
+    }
+
+    /**
+     * Lay out sorted suggestions in columns that fit the console width,
+     * ordered down the columns.
+     * 
+     * @param sorted
+     * @return
+     */
+    private String formatColumns(final String[] sorted) {
+        final int count = Math.min(sorted.length, MAX_LISTED_SUGGESTIONS);
+        int width = 0;
+        for (int i = 0; i < count; i++) {
+            width = Math.max(width, sorted[i].length());
+        }
+        width += SUGGESTION_SPACING;
+        final int cols = getCols() > 0 ? getCols() : DEFAULT_SUGGESTION_COLS;
+        final int perRow = Math.max(1, cols / width);
+        final int rows = (count + perRow - 1) / perRow;
+
+        final StringBuilder sb = new StringBuilder(rows * (cols + 1) + 32);
+        for (int r = 0; r < rows; r++) {
+            sb.append('\n');
+            for (int c = 0; c < perRow; c++) {
+                final int i = c * rows + r;
+                if (i >= count) {
+                    break;
+                }
+                if (c > 0) {
+                    // Pad the previous column
+                    final int pad = width - sorted[i - rows].length();
+                    for (int p = 0; p < pad; p++) {
+                        sb.append(' ');
+                    }
+                }
+                sb.append(sorted[i]);
+            }
+        }
+        if (count < sorted.length) {
+            sb.append("\n(").append(sorted.length - count).append(" more)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Complete an argument of a command that implements
+     * {@link ArgumentCompleter}. The completer runs in the command executor;
+     * if it does not finish within the completion timeout, the candidates it
+     * has added so far are returned.
+     * 
+     * @param cmd
+     * @param argv
+     *            command name and the arguments before the one being
+     *            completed
+     * @param prefix
+     *            beginning of the argument being completed
+     * @return sorted candidates, or null if the command does not complete
+     *         arguments
+     */
+    public Set<String> completeArgument(final Command cmd,
+            final String[] argv, final String prefix) {
+        if (!(cmd instanceof ArgumentCompleter)) {
+            return null;
+        }
+        final String p = prefix != null ? prefix : "";
+
+        // Narrow down the previous result if the user has typed more
+        final CommandCache commands = getCommandCache(true);
+        final SuggestionCache cache = suggestionCache;
+        if (cache != null && cache.covers(commands, cmd, argv, p)) {
+            final NavigableSet<String> narrowed = cache.narrow(p);
+            suggestionCache = new SuggestionCache(commands, cmd, argv, p,
+                    narrowed);
+            return Collections.unmodifiableSet(narrowed);
+        }
+
+        final ArgumentCompleter completer = (ArgumentCompleter) cmd;
+        final Completions completions = new Completions(p, MAX_COMPLETIONS);
+        final FutureTask<Object> task = new FutureTask<Object>(
+                new Runnable() {
+
+                    public void run() {
+                        try {
+                            completer.complete(Console.this, argv,
+                                    completions);
+                        } catch (final Exception e) {
+                            // Partial results are still used
+                        }
+                    }
+                }, null);
+        try {
+            getCommandExecutor().execute(task);
+            task.get(completionTimeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            task.cancel(true);
+        } catch (final RejectedExecutionException e) {
+            // Executor saturated, complete nothing
+        } catch (final ExecutionException e) {
+            // Not thrown, the task catches completer exceptions
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        completions.close();
+
+        // Partial results cannot be narrowed later
+        final boolean complete = task.isDone() && !task.isCancelled()
+                && !completions.isTruncated();
+        final NavigableSet<String> results = new TreeSet<String>(
+                completions.getResults());
+        suggestionCache = complete ? new SuggestionCache(commands, cmd,
+                argv.clone(), p, results) : null;
+        return Collections.unmodifiableSet(results);
+    }
+
+    public long getCompletionTimeout() {
+        return completionTimeout;
+    }
+
+    /**
+     * Set the time an {@link ArgumentCompleter} may take before its partial
+     * results are used.
+     * 
+     * @param millis
+     */
+    public void setCompletionTimeout(final long millis) {
+        completionTimeout = millis;
+    }
+
     public void bell() {
         client.call("bell");
     }
@@ -362,126 +864,1219 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
     }
 
-    protected void parseAndExecuteCommand(final String input) {
-        final String[] argv = parseInput(input);
-        if (argv != null && argv.length > 0) {
-            final Command c = getCommand(argv[0]);
-            if (c != null) {
-                final String result = executeCommand(c, argv);
-                if (result != null) {
-                    print(result);
+    /**
+     * Check the input against the rate limits.
+     * 
+     * @param input
+     * @return true if the input can be handled now
+     */
+    private boolean admitInput(final String input) {
+        synchronized (queuedInput) {
+            // Commands of a console run one at a time, input typed while one
+            // is running waits for it to finish
+            final boolean busy = isExecuting();
+            if (!busy && inputLimit == null && commandLimits == null
+                    && queuedInput.isEmpty()) {
+                return true;
+            }
+            // Queued input goes first
+            if (!busy && queuedInput.isEmpty()) {
+                final RateLimit limit = acquire(getCommandLimit(input));
+                if (limit == null) {
+                    return true;
+                }
+                if (limit.policy != RateLimitPolicy.QUEUE) {
+                    rejectInput(limit.policy);
+                    return false;
+                }
+            }
+            if (queuedInput.size() < MAX_QUEUED_INPUT) {
+                queuedInput.add(input);
+                if (!busy) {
+                    scheduleDrain(0);
                 }
             } else {
-                handler.commandNotFound(this, argv);
+                rejectInput(RateLimitPolicy.REJECT);
+                return false;
             }
         }
+        // Let the user type ahead
+        if (!isExecuting()) {
+            prompt();
+        }
+        return false;
     }
 
-    protected String executeCommand(final Command cmd, final String[] argv) {
-        try {
-            final Object r = cmd.execute(this, argv);
-            return r != null ? "" + r : null;
-        } catch (final Exception e) {
-            handler.handleException(this, e, cmd, argv);
+    private RateLimit getCommandLimit(final String input) {
+        if (commandLimits != null) {
+            final String[] argv = parseInput(input, false);
+            if (argv != null && argv.length > 0) {
+                return commandLimits.get(getFullCommandName(argv));
+            }
         }
         return null;
     }
 
-    protected String parseCommandPrefix(final String input) {
-        if (input == null) {
-            return null;
+    /**
+     * Take a token from each limit that applies to input for a command.
+     * 
+     * @param commandLimit
+     *            limit of the command, or null
+     * @return null if the input is within the limits, otherwise the limit
+     *         it exceeds
+     */
+    private RateLimit acquire(final RateLimit commandLimit) {
+        final long now = System.nanoTime();
+        if (inputLimit != null && inputLimit.bucket.getWait(now) > 0) {
+            return inputLimit;
         }
-        if (!input.endsWith(" ")) {
-            final String[] argv = parseInput(input);
-            if (argv != null && argv.length > 0) {
-                return argv[argv.length - 1];
-            }
+        if (commandLimit != null && !commandLimit.bucket.tryTake(now)) {
+            return commandLimit;
         }
-        return "";
+        if (inputLimit != null) {
+            inputLimit.bucket.tryTake(now);
+        }
+        return null;
     }
 
-    protected static String[] parseInput(final String input) {
-        if (input != null && !"".equals(input.trim())) {
-            final String[] temp = input.split(" ");
-            if (temp != null && temp.length > 0) {
-                final List<String> parsed = new ArrayList<String>(temp.length);
-                String current = null;
-                for (final String element : temp) {
-                    final int quotCount = count(element, '\"');
-                    if (quotCount > 0 && quotCount % 2 != 0) {
-                        // uneven number of quotes star or end combining params
-                        if (current != null) {
-                            parsed.add(current + " "
-                                    + element.replaceAll("\"", "")); // end
-                            current = null;
-                        } else {
-                            current = element.replaceAll("\"", ""); // start
-                        }
-                    } else if (current != null) {
-                        current += " " + element.replaceAll("\"", "");
-                    } else {
-                        parsed.add(element.replaceAll("\"", ""));
-                    }
-                }
-
-                // TODO: actually this is not quite right: We have an open quote
-                // somewhere. Exception maybe?
-                if (current != null) {
-                    parsed.add(current.replaceAll("\"", ""));
-                }
-                return parsed.toArray(new String[] {});
-            }
+    private void rejectInput(final RateLimitPolicy policy) {
+        if (policy == RateLimitPolicy.REJECT && rateLimitMessage != null) {
+            print(rateLimitMessage);
+        }
+        if (!isExecuting()) {
+            prompt();
         }
-        return new String[] {};
     }
 
-    protected static int count(final String sourceString, final char lookFor) {
-        if (sourceString == null) {
-            return -1;
+    private void scheduleDrain(final long delayNanos) {
+        final long at = System.nanoTime() + delayNanos;
+        if (drainScheduled && at - drainAt >= 0) {
+            return;
         }
-        int count = 0;
-        for (int i = 0; i < sourceString.length(); i++) {
-            final char c = sourceString.charAt(i);
-            if (c == lookFor) {
-                count++;
+        drainScheduled = true;
+        drainAt = at;
+        final Runnable drain = new Runnable() {
+
+            public void run() {
+                // Background threads must hold the application lock
+                final Application app = getApplication();
+                if (app != null) {
+                    synchronized (app) {
+                        runQueuedInput();
+                    }
+                } else {
+                    runQueuedInput();
+                }
             }
-        }
-        return count;
-    }
+        };
+        // Commands must not hold up the timer thread
+        CommandExecutors.getScheduler().schedule(new Runnable() {
 
-    public void print(final String output) {
-        client.call("print", output);
+            public void run() {
+                CommandExecutors.getTaskExecutor().execute(drain);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
     }
 
-    public String getGreeting() {
-        return config.greeting;
+    /**
+     * Handle queued input until the queue is empty, a limit is reached or a
+     * command is left running. A finished command continues from there.
+     * Input for a command over its own limit waits without holding up the
+     * input after it, except for further input for the same command.
+     */
+    private void runQueuedInput() {
+        while (true) {
+            String input = null;
+            synchronized (queuedInput) {
+                drainScheduled = false;
+                if (isExecuting()) {
+                    return;
+                }
+                List<RateLimit> throttled = null;
+                long wait = -1;
+                for (final Iterator<String> i = queuedInput.iterator(); i
+                        .hasNext();) {
+                    final String next = i.next();
+                    final RateLimit commandLimit = getCommandLimit(next);
+                    if (throttled != null && throttled.contains(commandLimit)) {
+                        continue;
+                    }
+                    final RateLimit limit = acquire(commandLimit);
+                    if (limit == null) {
+                        i.remove();
+                        input = next;
+                        break;
+                    }
+                    if (limit.policy != RateLimitPolicy.QUEUE) {
+                        i.remove();
+                        rejectInput(limit.policy);
+                        continue;
+                    }
+                    final long w = limit.bucket.getWait(System.nanoTime());
+                    wait = wait < 0 ? w : Math.min(wait, w);
+                    if (limit == inputLimit) {
+                        // The console limit holds up all input
+                        break;
+                    }
+                    if (throttled == null) {
+                        throttled = new ArrayList<RateLimit>();
+                    }
+                    throttled.add(limit);
+                }
+                if (input == null) {
+                    if (wait >= 0) {
+                        scheduleDrain(wait);
+                    }
+                    return;
+                }
+            }
+            handleInput(input);
+        }
     }
 
-    public String getPs() {
-        return config.ps;
+    /**
+     * Limit the rate of input lines. Input over the limit is queued, dropped
+     * or rejected according to the policy.
+     * 
+     * @param perSecond
+     *            sustained number of lines per second
+     * @param burst
+     *            number of lines accepted at once after an idle period
+     * @param policy
+     */
+    public void setRateLimit(final double perSecond, final int burst,
+            final RateLimitPolicy policy) {
+        final RateLimit limit = new RateLimit(perSecond, burst, policy);
+        synchronized (queuedInput) {
+            inputLimit = limit;
+        }
     }
 
-    public int getMaxBufferSize() {
-        return config.maxBufferSize;
+    public void removeRateLimit() {
+        synchronized (queuedInput) {
+            inputLimit = null;
+        }
     }
 
-    public int getRows() {
-        return config.rows;
+    /**
+     * Limit the rate at which a command can be run, in addition to the
+     * console rate limit. Abbreviations count as the full command.
+     * 
+     * @param command
+     * @param perSecond
+     * @param burst
+     * @param policy
+     */
+    public void setCommandRateLimit(final String command,
+            final double perSecond, final int burst,
+            final RateLimitPolicy policy) {
+        final RateLimit limit = new RateLimit(perSecond, burst, policy);
+        synchronized (queuedInput) {
+            if (commandLimits == null) {
+                commandLimits = new HashMap<String, RateLimit>();
+            }
+            commandLimits.put(command, limit);
+        }
     }
 
-    public void setGreeting(final String greeting) {
-        config.greeting = greeting;
-        client.call("setGreeting", greeting);
+    public void removeCommandRateLimit(final String command) {
+        synchronized (queuedInput) {
+            if (commandLimits != null) {
+                commandLimits.remove(command);
+                if (commandLimits.isEmpty()) {
+                    commandLimits = null;
+                }
+            }
+        }
     }
 
-    public void setPs(final String ps) {
-        config.ps = ps == null ? DEFAULT_PS : ps;
-        client.call("setPs", config.ps);
+    public String getRateLimitMessage() {
+        return rateLimitMessage;
     }
 
-    public void setMaxBufferSize(final int lines) {
-        config.maxBufferSize = lines > 0 ? lines : 0;
-        client.call("setMaxBufferSize", config.maxBufferSize);
+    /**
+     * Set the message printed when input is rejected by a rate limit.
+     * 
+     * @param rateLimitMessage
+     *            null to reject silently
+     */
+    public void setRateLimitMessage(final String rateLimitMessage) {
+        this.rateLimitMessage = rateLimitMessage;
+    }
+
+    protected void parseAndExecuteCommand(final String input) {
+        final String[] argv;
+        try {
+            argv = parseInput(input);
+        } catch (final InputSyntaxException e) {
+            handler.handleException(this, e, null, null);
+            return;
+        }
+        if (argv != null && argv.length > 0) {
+            if (isBackgroundCommand(input, argv)) {
+                final String[] args = new String[argv.length - 1];
+                System.arraycopy(argv, 0, args, 0, args.length);
+                final Command c = getCommand(args[0]);
+                if (c != null) {
+                    final String line = input.trim();
+                    startJob(c, args, line.substring(0,
+                            line.length() - BACKGROUND_SUFFIX.length()).trim());
+                } else {
+                    getCommandMetrics().commandNotFound();
+                    handler.commandNotFound(this, args);
+                }
+                return;
+            }
+            final Command c = getCommand(argv[0]);
+            if (c != null && asyncExecution) {
+                executeCommandAsync(c, argv);
+            } else if (c != null) {
+                final String result = executeCommand(c, argv);
+                if (result != null) {
+                    print(result);
+                }
+            } else {
+                getCommandMetrics().commandNotFound();
+                handler.commandNotFound(this, argv);
+            }
+        }
+    }
+
+    /**
+     * Check if the command line ends with an unquoted <code>&amp;</code>.
+     */
+    private boolean isBackgroundCommand(final String input, final String[] argv) {
+        if (!jobControlEnabled || argv.length < 2
+                || !BACKGROUND_SUFFIX.equals(argv[argv.length - 1])) {
+            return false;
+        }
+        final String line = input.trim();
+        return line.endsWith(BACKGROUND_SUFFIX)
+                && !line.endsWith("\\" + BACKGROUND_SUFFIX);
+    }
+
+    /**
+     * Run a command as a background job. Its output is buffered until it is
+     * brought to the foreground. When all job slots are taken, the oldest
+     * finished job is discarded with its output to make room.
+     * 
+     * @param cmd
+     * @param argv
+     * @param commandLine
+     *            the command line shown by the <code>jobs</code> command
+     */
+    protected void startJob(final Command cmd, final String[] argv,
+            final String commandLine) {
+        final Job job;
+        synchronized (jobs) {
+            if (jobs.size() >= MAX_JOBS && !discardFinishedJob()) {
+                handler.handleException(this, new RejectedExecutionException(
+                        "Too many jobs"), cmd, argv);
+                return;
+            }
+            int id = 1;
+            while (jobs.containsKey(id)) {
+                id++;
+            }
+            job = new Job(id, commandLine);
+            jobs.put(id, job);
+        }
+        // Before the job can report that it has finished
+        print("[" + job.getId() + "] " + commandLine);
+        try {
+            getCommandExecutor().execute(new Runnable() {
+
+                public void run() {
+                    String result = null;
+                    currentJob.set(job);
+                    try {
+                        if (!job.isCancelled()) {
+                            result = executeCommand(cmd, argv, job
+                                    .getCancellationToken(),
+                                    getFullCommandName(argv), false);
+                        }
+                    } finally {
+                        currentJob.remove();
+                        jobFinished(job, result);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            removeJob(job);
+            handler.handleException(this, e, cmd, argv);
+        }
+    }
+
+    /**
+     * Discard the job that finished first. Called holding the jobs lock.
+     * 
+     * @return false if all jobs are running
+     */
+    private boolean discardFinishedJob() {
+        Job oldest = null;
+        for (final Job job : jobs.values()) {
+            if (!job.isRunning()
+                    && (oldest == null || job.getEndNanos()
+                            - oldest.getEndNanos() < 0)) {
+                oldest = job;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        jobs.remove(oldest.getId());
+        return true;
+    }
+
+    private void jobFinished(final Job job, final String result) {
+        if (job.finished(result)) {
+            removeJob(job);
+            runningTokens.remove(job.getCancellationToken());
+            commandFinished(result);
+            return;
+        }
+        // Keep the job until its output has been seen
+        if (job.isCancelled() || !job.hasBufferedOutput()) {
+            removeJob(job);
+        }
+        final Application app = getApplication();
+        if (app != null) {
+            synchronized (app) {
+                printJobStatus(job);
+            }
+        } else {
+            printJobStatus(job);
+        }
+    }
+
+    private void printJobStatus(final Job job) {
+        print(job.toString());
+        if (!isExecuting()) {
+            prompt();
+        }
+    }
+
+    private void removeJob(final Job job) {
+        synchronized (jobs) {
+            jobs.remove(job.getId());
+        }
+    }
+
+    /**
+     * Get the running jobs and the finished jobs whose output has not been
+     * shown, in job number order. Finished jobs are kept until their output
+     * is shown or their slot is needed for a new job. Jobs are not
+     * serialized with the console; they end with the session.
+     * 
+     * @return
+     */
+    public List<Job> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<Job>(jobs.values());
+        }
+    }
+
+    /**
+     * Bind output printed in the current thread to a job.
+     * 
+     * @param job
+     *            the job, or null to print to the console
+     * @return the job bound before
+     */
+    static Job bindJob(final Job job) {
+        final Job previous = currentJob.get();
+        if (job != null) {
+            currentJob.set(job);
+        } else {
+            currentJob.remove();
+        }
+        return previous;
+    }
+
+    static Job getCurrentJob() {
+        return currentJob.get();
+    }
+
+    /**
+     * Get a job by its number.
+     * 
+     * @param id
+     * @return null if there is no such job
+     */
+    public Job getJob(final int id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * Print the buffered output of a job. If the job is still running, its
+     * further output is printed directly and the prompt is shown when it
+     * finishes, like for a command started in the foreground.
+     * 
+     * @param id
+     * @return false if there is no such job
+     */
+    public boolean foregroundJob(final int id) {
+        final Job job = getJob(id);
+        if (job == null) {
+            return false;
+        }
+        final boolean running;
+        synchronized (job) {
+            final String text = job.drainOutput();
+            if (text.length() > 0) {
+                print(text);
+            }
+            running = job.isRunning();
+            if (running) {
+                job.setForeground();
+                runningCommands.incrementAndGet();
+                runningTokens.add(job.getCancellationToken());
+            }
+        }
+        if (!running) {
+            removeJob(job);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel a running job, or discard the output of a finished one.
+     * 
+     * @param id
+     * @return false if there is no such job
+     */
+    public boolean killJob(final int id) {
+        final Job job = getJob(id);
+        if (job == null) {
+            return false;
+        }
+        if (job.isRunning()) {
+            job.getCancellationToken().cancel();
+        } else {
+            removeJob(job);
+        }
+        return true;
+    }
+
+    public boolean isJobControlEnabled() {
+        return jobControlEnabled;
+    }
+
+    /**
+     * Run command lines ending with <code>&amp;</code> as background jobs.
+     * Register the commands in {@link Job} to list and control them.
+     * 
+     * @param jobControlEnabled
+     */
+    public void setJobControlEnabled(final boolean jobControlEnabled) {
+        this.jobControlEnabled = jobControlEnabled;
+    }
+
+    protected String executeCommand(final Command cmd, final String[] argv) {
+        final CancellationToken token = new CancellationToken();
+        runningTokens.add(token);
+        return executeCommand(cmd, argv, token, getFullCommandName(argv), true);
+    }
+
+    /**
+     * Run the action of a trigger. The name of the trigger is not resolved
+     * as a command name: the action is recorded in the metrics and limited
+     * by the time limit set for <code>trigger:</code><i>name</i>, or the
+     * console limit.
+     * 
+     * @param action
+     * @param argv
+     *            the trigger name and the groups of the match
+     * @return
+     */
+    String executeTriggerAction(final Command action, final String[] argv) {
+        final CancellationToken token = new CancellationToken();
+        runningTokens.add(token);
+        return executeCommand(action, argv, token, TRIGGER_PREFIX + argv[0],
+                true);
+    }
+
+    /**
+     * Execute a command with a token registered to the running tokens.
+     * 
+     * @param name
+     *            the name the command is recorded and limited by
+     * @param timed
+     *            false to run without the time limit, as background jobs do
+     */
+    private String executeCommand(final Command cmd, final String[] argv,
+            final CancellationToken token, final String name,
+            final boolean timed) {
+        final CommandMetrics m = getCommandMetrics();
+        final CommandMetrics.Stats enclosing = m.started(name);
+        final CancellationToken enclosingToken = token.bind();
+        final long timeout = timed ? getCommandTimeout(name) : 0;
+        final TimeoutTask timeoutTask = timeout > 0 ? new TimeoutTask(token)
+                : null;
+        final TimingWheel.Timeout watch = timeoutTask != null ? CommandExecutors
+                .getWatchdog().schedule(timeoutTask, timeout,
+                        TimeUnit.MILLISECONDS)
+                : null;
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final Object r = cmd.execute(this, argv);
+            if (timeoutTask != null && timeoutTask.fired) {
+                // Returned after being cancelled, the result is dropped
+                timedOut(cmd, argv, name, timeout);
+                return null;
+            }
+            failed = false;
+            final String result = r != null ? "" + r : null;
+            CommandMetrics.printed(result);
+            return result;
+        } catch (final Exception e) {
+            if (timeoutTask != null && timeoutTask.fired) {
+                timedOut(cmd, argv, name, timeout);
+            } else if (token.isCancelled()) {
+                // Interrupted by the user, not an error
+                print(INTERRUPTED_MESSAGE);
+            } else {
+                handler.handleException(this, e, cmd, argv);
+            }
+        } finally {
+            if (watch != null) {
+                watch.cancel();
+            }
+            m.finished(enclosing, System.nanoTime() - start, failed);
+            runningTokens.remove(token);
+            token.unbind(enclosingToken);
+        }
+        return null;
+    }
+
+    private void timedOut(final Command cmd, final String[] argv,
+            final String name, final long timeout) {
+        handler.handleException(this, new TimeoutException(name
+                + ": timed out after " + timeout + " ms"), cmd, argv);
+    }
+
+    /**
+     * Cancels a command when its time is up. Runs in the watchdog thread,
+     * which only interrupts the command; the cancel listeners run in the
+     * shared executor so that they cannot hold up other timeouts.
+     */
+    private static class TimeoutTask implements Runnable {
+
+        private final CancellationToken token;
+        volatile boolean fired;
+
+        TimeoutTask(final CancellationToken token) {
+            this.token = token;
+        }
+
+        public void run() {
+            fired = true;
+            if (!token.markCancelled()) {
+                return;
+            }
+            final Runnable listeners = new Runnable() {
+
+                public void run() {
+                    token.runCancelListeners();
+                }
+            };
+            try {
+                CommandExecutors.getShared().execute(listeners);
+            } catch (final RejectedExecutionException e) {
+                listeners.run();
+            }
+        }
+    }
+
+    /**
+     * Get the time limit of a command.
+     * 
+     * @param command
+     * @return the limit set for the command, or the console limit; 0 if
+     *         there is none
+     */
+    public long getCommandTimeout(final String command) {
+        final Long t = command != null ? commandTimeouts.get(command) : null;
+        return t != null ? t : commandTimeout;
+    }
+
+    /**
+     * Get the default time limit of commands.
+     * 
+     * @return 0 if there is none
+     */
+    public long getCommandTimeout() {
+        return commandTimeout;
+    }
+
+    /**
+     * Set the default time limit of commands. When a command runs over its
+     * limit, it is cancelled like with {@link #interrupt()} and the handler
+     * gets a {@link TimeoutException}. All timeouts of the node are tracked
+     * by the watchdog of {@link CommandExecutors}. Background jobs run
+     * without a limit; they can be cancelled with <code>kill</code>.
+     * 
+     * @param millis
+     *            0 for no limit
+     */
+    public void setCommandTimeout(final long millis) {
+        commandTimeout = Math.max(0, millis);
+    }
+
+    /**
+     * Set the time limit of a command, overriding the console limit.
+     * Abbreviations count as the full command.
+     * 
+     * @param command
+     * @param millis
+     *            0 for no limit
+     */
+    public void setCommandTimeout(final String command, final long millis) {
+        commandTimeouts.put(command, Math.max(0, millis));
+    }
+
+    /**
+     * Remove the time limit of a command, so that the console limit applies
+     * to it again.
+     * 
+     * @param command
+     */
+    public void removeCommandTimeout(final String command) {
+        commandTimeouts.remove(command);
+    }
+
+    /**
+     * Get the cancellation token of the command running in the calling
+     * thread.
+     * 
+     * @return null if not called from a command
+     */
+    public CancellationToken getCancellationToken() {
+        return CancellationToken.current();
+    }
+
+    /**
+     * Cancel the running commands and discard queued input, like Ctrl-C in
+     * the client. Commands are interrupted and should stop as soon as they
+     * notice their {@link CancellationToken} has been cancelled. Commands
+     * running in the request thread cannot be interrupted from the client,
+     * see {@link #setAsyncExecution(boolean)}.
+     */
+    public void interrupt() {
+        synchronized (queuedInput) {
+            queuedInput.clear();
+        }
+        if (runningTokens.isEmpty()) {
+            // Nothing to stop, just discard the input line
+            print(INTERRUPTED_MESSAGE);
+            prompt();
+            return;
+        }
+        for (final CancellationToken t : runningTokens) {
+            t.cancel();
+        }
+    }
+
+    /**
+     * Get the full name of the command, resolving an abbreviation.
+     */
+    private String getFullCommandName(final String[] argv) {
+        final String name = argv != null && argv.length > 0 ? argv[0] : "";
+        if (abbreviationsEnabled && !commands.containsKey(name)) {
+            final String resolved = getCommandCache(false).index
+                    .resolve(name);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Get the metrics the commands of this console are recorded to.
+     * 
+     * @return the metrics set with {@link #setCommandMetrics(CommandMetrics)}
+     *         or the shared metrics
+     */
+    public CommandMetrics getCommandMetrics() {
+        return metrics != null ? metrics : CommandMetrics.getShared();
+    }
+
+    /**
+     * Record the commands of this console to the given metrics instead of the
+     * shared ones.
+     * 
+     * @param metrics
+     */
+    public void setCommandMetrics(final CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Execute a Command in the command executor and print its result when it
+     * completes. The prompt is shown again after the command has finished.
+     * 
+     * @param cmd
+     * @param argv
+     */
+    protected void executeCommandAsync(final Command cmd, final String[] argv) {
+        runningCommands.incrementAndGet();
+        // Registered now so that a queued command can be cancelled too
+        final CancellationToken token = new CancellationToken();
+        runningTokens.add(token);
+        try {
+            getCommandExecutor().execute(new Runnable() {
+
+                public void run() {
+                    String result = null;
+                    try {
+                        if (token.isCancelled()) {
+                            runningTokens.remove(token);
+                            result = INTERRUPTED_MESSAGE;
+                        } else {
+                            result = executeCommand(cmd, argv, token,
+                                    getFullCommandName(argv), true);
+                        }
+                    } finally {
+                        commandFinished(result);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            runningCommands.decrementAndGet();
+            runningTokens.remove(token);
+            handler.handleException(this, e, cmd, argv);
+        }
+    }
+
+    private void commandFinished(final String result) {
+        // Background threads must hold the application lock for repaints
+        final Application app = getApplication();
+        if (app != null) {
+            synchronized (app) {
+                finishCommand(result);
+            }
+        } else {
+            finishCommand(result);
+        }
+    }
+
+    private void finishCommand(final String result) {
+        if (result != null) {
+            print(result);
+        }
+        // Still executing until now, so that input handled meanwhile in the
+        // request thread neither prompts nor runs
+        runningCommands.decrementAndGet();
+        // A job brought to the foreground by the command prompts when done
+        if (!isExecuting()) {
+            prompt();
+        }
+        runQueuedInput();
+    }
+
+    /**
+     * Request a repaint from a thread that does not hold the application
+     * lock. Requests made while one is pending are merged. The calling
+     * thread may hold other locks, so the application lock is only taken in
+     * the task executor.
+     */
+    private void requestRepaintLater(final Application app) {
+        if (!repaintPending.compareAndSet(false, true)) {
+            return;
+        }
+        final Runnable repaint = new Runnable() {
+
+            public void run() {
+                synchronized (app) {
+                    repaintPending.set(false);
+                    requestRepaint();
+                }
+            }
+        };
+        try {
+            CommandExecutors.getTaskExecutor().execute(repaint);
+        } catch (final RejectedExecutionException e) {
+            // Shut down
+            repaintPending.set(false);
+        }
+    }
+
+    /**
+     * Check if commands are run outside the request thread.
+     * 
+     * @return
+     */
+    public boolean isAsyncExecution() {
+        return asyncExecution;
+    }
+
+    /**
+     * Run commands in the command executor instead of the request thread.
+     * 
+     * Output is delivered to the client on its next request to the server, so
+     * the application should poll the server while commands are running.
+     * Input entered while a command is running is handled after it has
+     * finished.
+     * 
+     * @see #setCommandExecutor(Executor)
+     * @param asyncExecution
+     */
+    public void setAsyncExecution(final boolean asyncExecution) {
+        this.asyncExecution = asyncExecution;
+    }
+
+    /**
+     * Get the executor used to run commands asynchronously.
+     * 
+     * @return
+     */
+    public Executor getCommandExecutor() {
+        return commandExecutor != null ? commandExecutor : CommandExecutors
+                .getShared();
+    }
+
+    /**
+     * Set the executor used to run commands asynchronously. By default the
+     * shared bounded executor from {@link CommandExecutors} is used.
+     * 
+     * @param commandExecutor
+     */
+    public void setCommandExecutor(final Executor commandExecutor) {
+        this.commandExecutor = commandExecutor;
+    }
+
+    /**
+     * Check if an asynchronously started command is still running.
+     * 
+     * @return
+     */
+    public boolean isExecuting() {
+        return runningCommands.get() > 0;
+    }
+
+    protected String parseCommandPrefix(final String input) {
+        if (input == null) {
+            return null;
+        }
+        if (!isArgumentStart(input)) {
+            final String[] argv = parseInput(input, false);
+            if (argv != null && argv.length > 0) {
+                return argv[argv.length - 1];
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Check if the next character typed would start a new argument, that is
+     * the input is empty or ends with whitespace outside quotes.
+     * 
+     * @param input
+     * @return
+     */
+    protected static boolean isArgumentStart(final String input) {
+        return tokenize(input + "x", false, null, null) > tokenize(input,
+                false, null, null);
+    }
+
+    /**
+     * Get the index where the argument returned by
+     * {@link #parseCommandPrefix(String)} starts in the input, including any
+     * quotes and escapes.
+     * 
+     * @param input
+     * @return
+     */
+    private static int getCommandPrefixStart(final String input) {
+        final int count = isArgumentStart(input) ? 0 : tokenize(input, false,
+                null, null);
+        if (count == 0) {
+            return input.length();
+        }
+        final int[] starts = new int[count];
+        tokenize(input, false, null, starts);
+        return starts[count - 1];
+    }
+
+    /**
+     * Split input into arguments. Arguments are separated by whitespace and
+     * may be quoted with double quotes. Inside and outside quotes
+     * <code>\"</code> is a literal quote and <code>\\</code> a literal
+     * backslash; other backslashes are kept as is.
+     * 
+     * @param input
+     * @return
+     * @throws InputSyntaxException
+     *             if a quote is not closed
+     */
+    protected static String[] parseInput(final String input) {
+        return parseInput(input, true);
+    }
+
+    /**
+     * Split input into arguments.
+     * 
+     * @param input
+     * @param strict
+     *            if false, an unclosed quote extends to the end of the input
+     * @return
+     */
+    protected static String[] parseInput(final String input,
+            final boolean strict) {
+        if (input == null) {
+            return new String[] {};
+        }
+        final String[] argv = new String[tokenize(input, strict, null, null)];
+        tokenize(input, strict, argv, null);
+        return argv;
+    }
+
+    /**
+     * Single pass tokenizer. Counts the arguments when <code>argv</code> is
+     * null, otherwise also stores them. Arguments without quotes or escapes
+     * are substrings of the input.
+     * 
+     * @param starts
+     *            if not null, receives the index where each argument starts
+     *            in the input
+     * @return number of arguments
+     */
+    private static int tokenize(final String input, final boolean strict,
+            final String[] argv, final int[] starts) {
+        final int len = input.length();
+        int count = 0;
+        char[] buf = null;
+        int i = 0;
+        while (i < len) {
+            while (i < len && Character.isWhitespace(input.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                break;
+            }
+
+            final int start = i;
+            int quoteStart = -1;
+            boolean plain = true; // no quotes or escapes so far
+            int n = 0; // length in buf when not plain
+            for (; i < len; i++) {
+                char c = input.charAt(i);
+                if (quoteStart < 0 && Character.isWhitespace(c)) {
+                    break;
+                }
+                boolean literal = true;
+                boolean escaped = false;
+                if (c == '"') {
+                    quoteStart = quoteStart < 0 ? i : -1;
+                    literal = false;
+                } else if (c == '\\' && i + 1 < len
+                        && (input.charAt(i + 1) == '"' || input
+                                .charAt(i + 1) == '\\')) {
+                    c = input.charAt(++i);
+                    escaped = true;
+                }
+                if (literal && !escaped) {
+                    if (!plain) {
+                        buf[n++] = c;
+                    }
+                    continue;
+                }
+                if (argv == null) {
+                    continue;
+                }
+                if (plain) {
+                    // Start copying at the first quote or escape
+                    plain = false;
+                    if (buf == null) {
+                        buf = new char[len];
+                    }
+                    final int end = escaped ? i - 1 : i;
+                    input.getChars(start, end, buf, 0);
+                    n = end - start;
+                }
+                if (literal) {
+                    buf[n++] = c;
+                }
+            }
+            if (quoteStart >= 0 && strict) {
+                throw new InputSyntaxException("Unclosed quote at column "
+                        + (quoteStart + 1), quoteStart);
+            }
+            if (argv != null) {
+                argv[count] = plain ? input.substring(start, i) : new String(
+                        buf, 0, n);
+            }
+            if (starts != null) {
+                starts[count] = start;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    protected static int count(final String sourceString, final char lookFor) {
+        if (sourceString == null) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = 0; i < sourceString.length(); i++) {
+            final char c = sourceString.charAt(i);
+            if (c == lookFor) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void print(final String output) {
+        output(output);
+    }
+
+    /**
+     * Send output to the client. All printing goes through here.
+     * 
+     * @param output
+     */
+    private void output(final String output) {
+        CommandMetrics.printed(output);
+        final Job job = currentJob.get();
+        if (job != null && output != null && job.buffer(output)) {
+            return;
+        }
+        final AnsiTranslator ansi = ansiTranslator;
+        if (ansi != null) {
+            // Sent in the order translated, the translator keeps the style
+            synchronized (ansi) {
+                client.call("print", ansi.translate(output));
+            }
+        } else {
+            client.call("print", output);
+        }
+
+        fireTriggers(output);
+    }
+
+    private void fireTriggers(final String output) {
+        // Actions run after the line that fired them has been printed
+        final List<TriggerEngine.Match> matches = triggers.process(output);
+        if (matches != null) {
+            triggers.fire(this, matches);
+        }
+    }
+
+    /**
+     * Add a trigger that runs the given command when an output line matches
+     * the regular expression. The command gets the trigger name and the
+     * capturing groups of the match as arguments. Output of trigger actions
+     * does not fire triggers. Actions are not subject to the rate limits and
+     * are recorded in the metrics as <code>trigger:</code><i>name</i>.
+     * 
+     * @see TriggerEngine
+     * @param name
+     * @param regex
+     * @param action
+     */
+    public void addTrigger(final String name, final String regex,
+            final Command action) {
+        addTrigger(name, Pattern.compile(regex), action);
+    }
+
+    public void addTrigger(final String name, final Pattern pattern,
+            final Command action) {
+        triggers.addTrigger(new TriggerEngine.Trigger(name, pattern, action));
+    }
+
+    public void removeTrigger(final String name) {
+        triggers.removeTrigger(name);
+    }
+
+    public void removeAllTriggers() {
+        triggers.removeAllTriggers();
+    }
+
+    public TriggerEngine getTriggerEngine() {
+        return triggers;
+    }
+
+    /**
+     * Get the number of output lines kept on the server for replaying when
+     * the client is initialized again, for example after a browser refresh.
+     * The scrollback is disabled by default.
+     * 
+     * @return
+     */
+    public int getScrollbackLines() {
+        final ScrollbackBuffer sb = client.getReplayBuffer();
+        return sb != null ? sb.getMaxLines() : 0;
+    }
+
+    /**
+     * Set the number of output lines kept on the server for replaying when
+     * the client is initialized again. Zero disables the scrollback. The
+     * current scrollback is discarded.
+     * 
+     * @param lines
+     */
+    public void setScrollbackLines(final int lines) {
+        client.setReplayBuffer("print", lines > 0 ? new ScrollbackBuffer(
+                lines) : null);
+    }
+
+    /**
+     * Check if ANSI escape sequences in the output are translated to styles.
+     * 
+     * @return
+     */
+    public boolean isAnsiEnabled() {
+        return ansiTranslator != null;
+    }
+
+    /**
+     * Translate ANSI SGR escape sequences (colors, bold, underline) in the
+     * output to styles. Other escape sequences are removed from the output.
+     * 
+     * @see AnsiTranslator
+     * @param ansiEnabled
+     */
+    public void setAnsiEnabled(final boolean ansiEnabled) {
+        if (ansiEnabled != isAnsiEnabled()) {
+            ansiTranslator = ansiEnabled ? new AnsiTranslator() : null;
+        }
+    }
+
+    public String getGreeting() {
+        return config.greeting;
+    }
+
+    public String getPs() {
+        return config.ps;
+    }
+
+    public int getMaxBufferSize() {
+        return config.maxBufferSize;
+    }
+
+    public int getRows() {
+        return config.rows;
+    }
+
+    public void setGreeting(final String greeting) {
+        config.greeting = greeting;
+        client.call("setGreeting", greeting);
+    }
+
+    public void setPs(final String ps) {
+        config.ps = ps == null ? DEFAULT_PS : ps;
+        client.call("setPs", config.ps);
+    }
+
+    public void setMaxBufferSize(final int lines) {
+        config.maxBufferSize = lines > 0 ? lines : 0;
+        client.call("setMaxBufferSize", config.maxBufferSize);
     }
 
     public void setRows(final int rows) {
@@ -519,11 +2114,20 @@ public class Console extends AbstractComponent implements Component.Focusable {
     }
 
     public void println(final String string) {
-        client.call("println", string);
+        // Sent as print so that consecutive output is merged into one call
+        output(string + "\n");
     }
 
     public void newLine() {
+        CommandMetrics.printed("\n");
+        final Job job = currentJob.get();
+        if (job != null && job.buffer("\n")) {
+            return;
+        }
+        // A call of its own: unlike printed text, it does not take the input
+        // of an active prompt into the output
         client.call("newLine");
+        fireTriggers("\n");
     }
 
     public void reset() {
@@ -586,29 +2190,22 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
     /* PrintStream implementation for console output. */
 
+    /**
+     * Get a PrintStream printing to this console. Output is encoded and
+     * decoded as UTF-8 and buffered, see {@link ConsoleOutputStream}.
+     * 
+     * @return
+     */
     public PrintStream getPrintStream() {
         if (printStream == null) {
-            printStream = new PrintStream(new OutputStream() {
-
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-
-                @Override
-                public void write(final int b) throws IOException {
-                    buffer.write(b);
-                    // Line buffering
-                    if (13 == b) {
-                        flush();
-                    }
-                }
-
-                @Override
-                public void flush() throws IOException {
-                    super.flush();
-                    buffer.flush();
-                    Console.this.print(buffer.toString());
-                    buffer.reset();
-                }
-            }, true);
+            try {
+                printStream = new PrintStream(new ConsoleOutputStream(this,
+                        PRINT_STREAM_CHARSET), false,
+                        PRINT_STREAM_CHARSET.name());
+            } catch (final UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new RuntimeException(e);
+            }
         }
         return printStream;
     }
@@ -637,6 +2234,7 @@ public class Console extends AbstractComponent implements Component.Focusable {
         if (isAlias) {
             commandAliases.add(name);
         }
+        invalidateCommandIndex();
     }
 
     public Set<String> getCommandNames() {
@@ -654,15 +2252,28 @@ public class Console extends AbstractComponent implements Component.Focusable {
      */
     public void removeCommand(final String cmdName) {
         commands.remove(cmdName);
+        invalidateCommandIndex();
     }
 
     /**
-     * Get a Command by its name.
+     * Get a Command by its name. If abbreviations are enabled, a unique
+     * prefix of a command name is accepted too.
      * 
      * @param cmdName
      * @return
      */
     public Command getCommand(final String cmdName) {
+        Command cmd = findCommand(cmdName);
+        if (cmd == null && abbreviationsEnabled && cmdName != null) {
+            final String name = getCommandCache(false).index.resolve(cmdName);
+            if (name != null && !name.equals(cmdName)) {
+                cmd = findCommand(name);
+            }
+        }
+        return cmd;
+    }
+
+    private Command findCommand(final String cmdName) {
 
         // Try directly registered command first
         Command cmd = commands.get(cmdName);
@@ -672,12 +2283,7 @@ public class Console extends AbstractComponent implements Component.Focusable {
 
         // Ask from the providers
         if (commandProviders != null) {
-            for (final CommandProvider cp : commandProviders) {
-                cmd = cp.getCommand(this, cmdName);
-                if (cmd != null) {
-                    return cmd;
-                }
-            }
+            return getCommandCache(false).getCommand(this, cmdName);
         }
 
         // Not found
@@ -709,14 +2315,119 @@ public class Console extends AbstractComponent implements Component.Focusable {
      * @return
      */
     public Set<String> getCommands() {
-        final Set<String> res = new HashSet<String>();
-        if (commandProviders != null) {
-            for (final CommandProvider cp : commandProviders) {
-                res.addAll(cp.getAvailableCommands(this));
-            }
+        return getCommandIndex().getAll();
+    }
+
+    /**
+     * Get the names of the available commands starting with the given
+     * prefix, in sorted order.
+     * 
+     * @param prefix
+     * @return
+     */
+    public Set<String> getCommandsStartingWith(final String prefix) {
+        return getCommandIndex().startingWith(prefix);
+    }
+
+    /**
+     * Get the index of available command names. The index is built when
+     * first needed after commands or command providers have changed, a
+     * {@link VersionedCommandProvider} reports a new version or the names of
+     * another provider change.
+     * 
+     * @return
+     */
+    public CommandIndex getCommandIndex() {
+        return getCommandCache(true).index;
+    }
+
+    /**
+     * Get the command cache, rebuilt if a provider version has changed.
+     * 
+     * @param checkNames
+     *            true to rebuild it also if the names of an unversioned
+     *            provider have changed
+     */
+    private CommandCache getCommandCache(final boolean checkNames) {
+        CommandCache cache = commandCache;
+        if (cache == null || !cache.isCurrent(this) || checkNames
+                && !cache.hasCurrentNames(this)) {
+            cache = new CommandCache(this);
+            commandCache = cache;
         }
-        res.addAll(commands.keySet());
-        return Collections.unmodifiableSet(res);
+        return cache;
+    }
+
+    /**
+     * Rebuild the command index and cached provider commands when used next.
+     * Changes of the providers are detected without this; call it if a
+     * {@link VersionedCommandProvider} changes its commands without changing
+     * its version.
+     */
+    public void invalidateCommandIndex() {
+        commandCache = null;
+        suggestionCache = null;
+    }
+
+    /**
+     * Find command names within a small edit distance of the given name, for
+     * suggesting corrections to typos.
+     * 
+     * @param cmdName
+     * @return the closest names first
+     */
+    public List<String> getSimilarCommands(final String cmdName) {
+        if (cmdName == null || cmdName.length() == 0) {
+            return Collections.emptyList();
+        }
+        final int maxDistance = cmdName.length() <= SHORT_COMMAND_LENGTH ? 1
+                : 2;
+        return getCommandCache(true).getSimilar().find(cmdName, maxDistance,
+                MAX_SIMILAR_COMMANDS);
+    }
+
+    public boolean isAbbreviationsEnabled() {
+        return abbreviationsEnabled;
+    }
+
+    /**
+     * Accept unique prefixes of command names as commands, for example "n"
+     * for "north" if no other command starts with "n". An exact name always
+     * wins over an abbreviation.
+     * 
+     * @param abbreviationsEnabled
+     */
+    public void setAbbreviationsEnabled(final boolean abbreviationsEnabled) {
+        this.abbreviationsEnabled = abbreviationsEnabled;
+    }
+
+    /**
+     * Limit the output waiting to be sent to the client.
+     * 
+     * When the number of pending output calls or characters exceeds the limit
+     * the given policy is applied. Non-positive limit means unlimited. Note
+     * that {@link OverflowPolicy#BLOCK} can only wait for the next repaint
+     * when printing from a background thread; in the request thread it drops
+     * the oldest output after the block timeout.
+     * 
+     * @param maxCalls
+     * @param maxChars
+     * @param policy
+     */
+    public void setOutputLimit(final int maxCalls, final long maxChars,
+            final OverflowPolicy policy) {
+        client.setOutputLimit(maxCalls, maxChars, policy);
+    }
+
+    /**
+     * Get the number of times the output limit has been exceeded with the
+     * given policy in effect.
+     * 
+     * @param policy
+     * @return
+     */
+    public long getOutputOverflowCount(final OverflowPolicy policy) {
+        return client.getOverflowCount(policy);
     }
 
     public void addStyle(String tagName, String style) {
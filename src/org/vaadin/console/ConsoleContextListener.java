@@ -0,0 +1,27 @@
+package org.vaadin.console;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.vaadin.console.telnet.TelnetReactor;
+
+/**
+ * Releases the resources consoles share across applications when the web
+ * application is stopped. Register it in <code>web.xml</code> with
+ * <code>&lt;listener&gt;</code>; otherwise the shared
+ * {@link CommandMetrics} MBean stays registered and the threads of
+ * {@link CommandExecutors} and the shared {@link TelnetReactor} keep running
+ * after the application is undeployed.
+ *
+ */
+public class ConsoleContextListener implements ServletContextListener {
+
+    public void contextInitialized(final ServletContextEvent event) {
+    }
+
+    public void contextDestroyed(final ServletContextEvent event) {
+        CommandMetrics.releaseShared();
+        TelnetReactor.shutdownShared();
+        CommandExecutors.shutdown();
+    }
+}
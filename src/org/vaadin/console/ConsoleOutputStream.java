@@ -0,0 +1,225 @@
+package org.vaadin.console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.Application;
+
+/**
+ * Buffered OutputStream printing to a Console.
+ * 
+ * Bytes are decoded with an explicit charset; a multibyte character split
+ * between writes is kept until it is complete. The decoded text is printed
+ * with a single {@link Console#print(String)} when the buffer size is
+ * reached, when the oldest buffered text has waited for the maximum latency,
+ * or when the stream is flushed. Text printed because of the latency is
+ * printed from a thread of the task executor of {@link CommandExecutors}. Text written by a
+ * background job stays the output of that job.
+ * 
+ */
+public class ConsoleOutputStream extends OutputStream {
+
+    /** Default number of buffered characters that triggers printing. */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** Default maximum time in milliseconds text stays buffered. */
+    public static final long DEFAULT_MAX_LATENCY = 50;
+
+    private static final int DECODE_BUFFER_SIZE = 1024;
+
+    private final Console console;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer decodeIn = ByteBuffer.allocate(DECODE_BUFFER_SIZE);
+    private final CharBuffer decodeOut = CharBuffer
+            .allocate(DECODE_BUFFER_SIZE);
+    private final StringBuilder text = new StringBuilder();
+    // Job that wrote the buffered text
+    private Job job;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private long maxLatency = DEFAULT_MAX_LATENCY;
+    private ScheduledFuture<?> timer;
+    private boolean closed;
+
+    private final Runnable flushTask = new Runnable() {
+
+        public void run() {
+            flushText();
+        }
+    };
+
+    // The timer thread is shared by all streams, so it must not wait for an
+    // application lock; the flush is handed to the task executor
+    private final Runnable timedFlush = new Runnable() {
+
+        public void run() {
+            try {
+                CommandExecutors.getTaskExecutor().execute(flushTask);
+            } catch (final RejectedExecutionException e) {
+                // Shut down, the text is printed on the next flush
+                synchronized (ConsoleOutputStream.this) {
+                    timer = null;
+                }
+            }
+        }
+    };
+
+    public ConsoleOutputStream(final Console console, final Charset charset) {
+        this.console = console;
+        this.charset = charset;
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public synchronized int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the number of buffered characters that causes them to be printed.
+     * 
+     * @param bufferSize
+     */
+    public synchronized void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * Set the maximum time text may stay buffered before it is printed. Zero
+     * prints on every write.
+     * 
+     * @param millis
+     */
+    public synchronized void setMaxLatency(final long millis) {
+        maxLatency = millis;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        final Job current = Console.getCurrentJob();
+        if (hasTextOfOtherJob(current)) {
+            // Text of different jobs is printed separately
+            flushText();
+        }
+        boolean full;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (text.length() == 0) {
+                job = current;
+            }
+            while (len > 0) {
+                final int n = Math.min(len, decodeIn.remaining());
+                decodeIn.put(b, off, n);
+                off += n;
+                len -= n;
+                decode(false);
+            }
+            full = text.length() >= bufferSize || maxLatency <= 0;
+            if (!full && timer == null && text.length() > 0) {
+                timer = CommandExecutors.getScheduler().schedule(timedFlush,
+                        maxLatency, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flushText();
+        }
+    }
+
+    private synchronized boolean hasTextOfOtherJob(final Job current) {
+        return text.length() > 0 && job != current;
+    }
+
+    private void decode(final boolean endOfInput) {
+        decodeIn.flip();
+        CoderResult r;
+        do {
+            r = decoder.decode(decodeIn, decodeOut, endOfInput);
+            decodeOut.flip();
+            text.append(decodeOut);
+            decodeOut.clear();
+        } while (r.isOverflow());
+        // Incomplete multibyte characters stay for the next write
+        decodeIn.compact();
+    }
+
+    /**
+     * Print all buffered text now. An incomplete multibyte character at the
+     * end stays buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        flushText();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            decode(true);
+            decoder.flush(decodeOut);
+            decodeOut.flip();
+            text.append(decodeOut);
+            decodeOut.clear();
+        }
+        flushText();
+    }
+
+    private void flushText() {
+        // Background threads must hold the application lock for repaints.
+        // It is always taken before the lock of this stream.
+        final Application app = console.getApplication();
+        if (app != null) {
+            synchronized (app) {
+                printText();
+            }
+        } else {
+            printText();
+        }
+    }
+
+    private synchronized void printText() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (text.length() > 0) {
+            final String s = text.toString();
+            text.setLength(0);
+            // Also when printed from another thread
+            final Job previous = Console.bindJob(job);
+            try {
+                console.print(s);
+            } finally {
+                Console.bindJob(previous);
+            }
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package org.vaadin.console;
 
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeoutException;
 
 import org.vaadin.console.Console.Command;
 import org.vaadin.console.Console.Handler;
@@ -16,6 +17,11 @@ public class DefaultConsoleHandler implements Handler {
 
     public void handleException(final Console console, final Exception e,
             final Command cmd, final String[] argv) {
+        if (e instanceof InputSyntaxException
+                || e instanceof TimeoutException) {
+            console.println("ERROR: " + e.getMessage() + ".");
+            return;
+        }
         e.printStackTrace();
         console.println(e.getClass().getSimpleName() + ": " + e.getMessage());
     }
@@ -23,26 +29,44 @@ public class DefaultConsoleHandler implements Handler {
     public Set<String> getSuggestions(final Console console, final String input) {
 
         final String prefix = console.parseCommandPrefix(input);
-        if (prefix != null) {
-            final Set<String> matches = new HashSet<String>();
-            final Set<String> cmds = console.getCommands();
-            for (final String cmd : cmds) {
-                if (cmd.startsWith(prefix)) {
-                    matches.add(cmd);
-                }
-            }
-            return matches;
+        if (prefix == null) {
+            return null;
+        }
+
+        // Arguments are completed by the command, if it can
+        final String[] argv = Console.parseInput(input, false);
+        final int index = Console.isArgumentStart(input) ? argv.length
+                : argv.length - 1;
+        if (index > 0) {
+            final Command cmd = console.getCommand(argv[0]);
+            final String[] args = new String[index];
+            System.arraycopy(argv, 0, args, 0, index);
+            return console.completeArgument(cmd, args, prefix);
         }
-        return null;
+        return console.getCommandsStartingWith(prefix);
     }
 
     public void inputReceived(final Console console, final String lastInput) {
         console.parseAndExecuteCommand(lastInput);
-        console.prompt();
+
+        // Asynchronous commands prompt when they finish
+        if (!console.isExecuting()) {
+            console.prompt();
+        }
     }
 
     public void commandNotFound(final Console console, final String[] argv) {
-        console.print("ERROR: " + argv[0] + ": command not found.");
+        final StringBuilder msg = new StringBuilder("ERROR: ").append(argv[0])
+                .append(": command not found.");
+        final List<String> similar = console.getSimilarCommands(argv[0]);
+        for (int i = 0; i < similar.size(); i++) {
+            msg.append(i == 0 ? " Did you mean: " : ", ").append(
+                    similar.get(i));
+        }
+        if (!similar.isEmpty()) {
+            msg.append('?');
+        }
+        console.print(msg.toString());
     }
 
 }
@@ -0,0 +1,27 @@
+package org.vaadin.console;
+
+/**
+ * Thrown when command input cannot be split into arguments, for example
+ * because of an unclosed quote.
+ * 
+ */
+public class InputSyntaxException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = -4471953064541298046L;
+
+    private final int position;
+
+    public InputSyntaxException(final String message, final int position) {
+        super(message);
+        this.position = position;
+    }
+
+    /**
+     * Get the position of the error in the input.
+     * 
+     * @return
+     */
+    public int getPosition() {
+        return position;
+    }
+}
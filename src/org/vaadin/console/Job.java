@@ -0,0 +1,257 @@
+package org.vaadin.console;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Locale;
+
+import org.vaadin.console.util.ScrollbackBuffer;
+
+/**
+ * A command running in the background of a console.
+ *
+ * A command line ending with <code>&amp;</code> is started as a job when job
+ * control is enabled. The output of a background job is kept in a bounded
+ * buffer until the job is brought to the foreground with <code>fg</code>,
+ * which prints the buffered output and then passes further output to the
+ * console as it is printed. A job that finishes in the background prints
+ * a notice and keeps its output until it is shown or the slot of the job is
+ * needed for a new one. The commands in this class are not registered by
+ * default.
+ *
+ * @see Console#setJobControlEnabled(boolean)
+ */
+public class Job implements Serializable {
+
+    private static final long serialVersionUID = 6021740361318552479L;
+
+    private static final int OUTPUT_LINES = 500;
+
+    private final int id;
+    private final String commandLine;
+    private final CancellationToken token = new CancellationToken();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+
+    // Guarded by this
+    private final ScrollbackBuffer output = new ScrollbackBuffer(OUTPUT_LINES);
+    private long outputChars;
+    private boolean foreground;
+
+    Job(final int id, final String commandLine) {
+        this.id = id;
+        this.commandLine = commandLine;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getCommandLine() {
+        return commandLine;
+    }
+
+    public boolean isRunning() {
+        return endNanos == 0;
+    }
+
+    public boolean isCancelled() {
+        return token.isCancelled();
+    }
+
+    public synchronized boolean isForeground() {
+        return foreground;
+    }
+
+    /**
+     * Get the time the job has been running, or ran if it has finished.
+     *
+     * @return
+     */
+    public long getElapsedMillis() {
+        final long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return (end - startNanos) / 1000000;
+    }
+
+    /**
+     * Get the number of characters the job has printed.
+     *
+     * @return
+     */
+    public synchronized long getOutputChars() {
+        return outputChars;
+    }
+
+    long getEndNanos() {
+        return endNanos;
+    }
+
+    CancellationToken getCancellationToken() {
+        return token;
+    }
+
+    /**
+     * Buffer output of a background job.
+     *
+     * @param text
+     * @return false if the job is in the foreground and the text should be
+     *         printed
+     */
+    synchronized boolean buffer(final String text) {
+        if (foreground) {
+            return false;
+        }
+        outputChars += text.length();
+        output.append(text);
+        return true;
+    }
+
+    /**
+     * Take the buffered output.
+     *
+     * @return
+     */
+    synchronized String drainOutput() {
+        final String text = output.getText();
+        output.clear();
+        return text;
+    }
+
+    synchronized void setForeground() {
+        foreground = true;
+    }
+
+    synchronized boolean hasBufferedOutput() {
+        return output.getSize() > 0;
+    }
+
+    /**
+     * Mark the job finished, buffering the result if it is in the
+     * background.
+     *
+     * @param result
+     * @return true if the job is in the foreground
+     */
+    synchronized boolean finished(final String result) {
+        endNanos = System.nanoTime();
+        if (!foreground && result != null) {
+            buffer(result);
+        }
+        return foreground;
+    }
+
+    /**
+     * Get the job state as shown by <code>jobs</code>.
+     *
+     * @return
+     */
+    public String getStatus() {
+        if (isRunning()) {
+            return isCancelled() ? "Killing" : "Running";
+        }
+        return isCancelled() ? "Killed" : "Done";
+    }
+
+    @Override
+    public String toString() {
+        return "[" + id + "] " + getStatus() + "  " + commandLine;
+    }
+
+    /**
+     * Find a job by a <code>%n</code> or <code>n</code> job number, or the
+     * latest job if none is given.
+     *
+     * @return the job or null
+     */
+    private static Job findJob(final Console console, final String[] argv) {
+        if (argv.length < 2) {
+            final List<Job> jobs = console.getJobs();
+            return jobs.isEmpty() ? null : jobs.get(jobs.size() - 1);
+        }
+        final String spec = argv[1].startsWith("%") ? argv[1].substring(1)
+                : argv[1];
+        try {
+            return console.getJob(Integer.parseInt(spec));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String noSuchJob(final String[] argv) {
+        return argv[0] + ": " + (argv.length < 2 ? "current" : argv[1])
+                + ": no such job";
+    }
+
+    /**
+     * Lists the jobs of the console. Usage: <code>jobs</code>.
+     */
+    public static class JobsCommand implements Console.Command {
+
+        private static final long serialVersionUID = -1286203411069513466L;
+
+        public Object execute(final Console console, final String[] argv)
+                throws Exception {
+            final StringBuilder sb = new StringBuilder();
+            for (final Job job : console.getJobs()) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(String.format(Locale.US, "[%d] %-8s %9.1fs %10d  %s",
+                        job.getId(), job.getStatus(),
+                        job.getElapsedMillis() / 1000.0, job.getOutputChars(),
+                        job.getCommandLine()));
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        public String getUsage(final Console console, final String[] argv) {
+            return "";
+        }
+    }
+
+    /**
+     * Brings a job to the foreground. Usage: <code>fg [%job]</code>.
+     */
+    public static class FgCommand implements Console.Command {
+
+        private static final long serialVersionUID = 4432585013601384587L;
+
+        public Object execute(final Console console, final String[] argv)
+                throws Exception {
+            final Job job = findJob(console, argv);
+            if (job == null) {
+                return noSuchJob(argv);
+            }
+            console.foregroundJob(job.getId());
+            return null;
+        }
+
+        public String getUsage(final Console console, final String[] argv) {
+            return "[%job]";
+        }
+    }
+
+    /**
+     * Cancels a job. Usage: <code>kill %job</code>.
+     */
+    public static class KillCommand implements Console.Command {
+
+        private static final long serialVersionUID = -8837047934577093735L;
+
+        public Object execute(final Console console, final String[] argv)
+                throws Exception {
+            if (argv.length < 2) {
+                return "usage: " + argv[0] + " " + getUsage(console, argv);
+            }
+            final Job job = findJob(console, argv);
+            if (job == null) {
+                return noSuchJob(argv);
+            }
+            console.killJob(job.getId());
+            return null;
+        }
+
+        public String getUsage(final Console console, final String[] argv) {
+            return "%job";
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package org.vaadin.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.vaadin.console.Console.Command;
+import org.vaadin.console.util.LiteralMatcher;
+
+/**
+ * Matches output lines against a set of triggers.
+ *
+ * Output is split into lines with ANSI escape sequences removed, and each
+ * complete line is evaluated once against all triggers. A literal that any
+ * match must contain is extracted from each trigger pattern, and all the
+ * literals are compiled into a single {@link LiteralMatcher}. The regular
+ * expression of a trigger is only run if its literal occurs in the line, so
+ * the cost per line grows with the number of triggers that could match, not
+ * with the number of triggers. Patterns without a required literal are
+ * always run.
+ *
+ */
+public class TriggerEngine implements Serializable {
+
+    private static final long serialVersionUID = -7451273935616052816L;
+
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final char ESC = '\u001b';
+    private static final char BEL = '\u0007';
+
+    private static final int TEXT = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+
+    // Engine of the triggers being fired in the current thread
+    private static final ThreadLocal<TriggerEngine> firing = new ThreadLocal<TriggerEngine>();
+
+    /**
+     * A named pattern and the command run when an output line matches it.
+     */
+    public static class Trigger implements Serializable {
+
+        private static final long serialVersionUID = 2840135616305470384L;
+
+        private final String name;
+        private final Pattern pattern;
+        private final Command action;
+
+        public Trigger(final String name, final Pattern pattern,
+                final Command action) {
+            this.name = name;
+            this.pattern = pattern;
+            this.action = action;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Pattern getPattern() {
+            return pattern;
+        }
+
+        public Command getAction() {
+            return action;
+        }
+    }
+
+    /**
+     * A trigger that matched a line. The arguments of the action are the
+     * trigger name followed by the capturing groups of the match.
+     */
+    public static class Match implements Serializable {
+
+        private static final long serialVersionUID = -3617309465512245874L;
+
+        private final Trigger trigger;
+        private final String[] argv;
+
+        Match(final Trigger trigger, final String[] argv) {
+            this.trigger = trigger;
+            this.argv = argv;
+        }
+
+        public Trigger getTrigger() {
+            return trigger;
+        }
+
+        public String[] getArgv() {
+            return argv;
+        }
+    }
+
+    /**
+     * Immutable compiled form of the triggers.
+     */
+    private static class Compiled implements Serializable {
+
+        private static final long serialVersionUID = 5983164502519338870L;
+
+        final Trigger[] triggers;
+        final LiteralMatcher literals;
+        // Triggers without a literal, always candidates
+        final BitSet unfiltered = new BitSet();
+
+        Compiled(final Trigger[] triggers) {
+            this.triggers = triggers;
+            final String[] l = new String[triggers.length];
+            for (int i = 0; i < triggers.length; i++) {
+                l[i] = requiredLiteral(triggers[i].getPattern());
+                if (l[i] == null) {
+                    unfiltered.set(i);
+                }
+            }
+            literals = new LiteralMatcher(l);
+        }
+    }
+
+    private final Map<String, Trigger> triggers = new LinkedHashMap<String, Trigger>();
+    private volatile Compiled compiled = new Compiled(new Trigger[0]);
+
+    // Line assembly, guarded by this
+    private final StringBuilder line = new StringBuilder();
+    private int state = TEXT;
+
+    /**
+     * Add a trigger. A trigger with the same name is replaced. Triggers are
+     * fired in the order they were added.
+     *
+     * @param trigger
+     */
+    public void addTrigger(final Trigger trigger) {
+        synchronized (triggers) {
+            triggers.remove(trigger.getName());
+            triggers.put(trigger.getName(), trigger);
+            compile();
+        }
+    }
+
+    public void removeTrigger(final String name) {
+        synchronized (triggers) {
+            if (triggers.remove(name) != null) {
+                compile();
+            }
+        }
+    }
+
+    public void removeAllTriggers() {
+        synchronized (triggers) {
+            triggers.clear();
+            compile();
+        }
+    }
+
+    public Trigger getTrigger(final String name) {
+        synchronized (triggers) {
+            return triggers.get(name);
+        }
+    }
+
+    public List<Trigger> getTriggers() {
+        synchronized (triggers) {
+            return Collections.unmodifiableList(new ArrayList<Trigger>(
+                    triggers.values()));
+        }
+    }
+
+    public boolean isEmpty() {
+        return compiled.triggers.length == 0;
+    }
+
+    private void compile() {
+        compiled = new Compiled(triggers.values().toArray(
+                new Trigger[triggers.size()]));
+    }
+
+    /**
+     * Check if the triggers of this engine are being fired in the current
+     * thread. Output printed by trigger actions is not matched again.
+     *
+     * @return
+     */
+    public boolean isFiring() {
+        return firing.get() == this;
+    }
+
+    /**
+     * Fire the given matches in the current thread.
+     *
+     * @param console
+     * @param matches
+     */
+    void fire(final Console console, final List<Match> matches) {
+        final TriggerEngine previous = firing.get();
+        firing.set(this);
+        try {
+            for (final Match m : matches) {
+                final String result = console.executeTriggerAction(m
+                        .getTrigger().getAction(), m.getArgv());
+                if (result != null) {
+                    console.println(result);
+                }
+            }
+        } finally {
+            firing.set(previous);
+        }
+    }
+
+    /**
+     * Feed the next chunk of output. Incomplete lines are kept until the rest
+     * of the line arrives.
+     *
+     * @param text
+     * @return matches of the complete lines, or null if there are none
+     */
+    public List<Match> process(final String text) {
+        final Compiled c = compiled;
+        if (text == null || c.triggers.length == 0 || isFiring()) {
+            return null;
+        }
+        List<Match> matches = null;
+        synchronized (this) {
+            final int len = text.length();
+            for (int i = 0; i < len; i++) {
+                final char ch = text.charAt(i);
+                if (state == TEXT) {
+                    if (ch == '\n') {
+                        matches = match(c, line, matches);
+                        line.setLength(0);
+                    } else if (ch == ESC) {
+                        state = ESCAPE;
+                    } else if (ch != '\r' && line.length() < MAX_LINE_LENGTH) {
+                        line.append(ch);
+                    }
+                } else if (state == ESCAPE) {
+                    state = ch == '[' ? CSI : (ch == ']' ? OSC : TEXT);
+                } else if (state == OSC) {
+                    if (ch == BEL || ch == ESC) {
+                        state = ch == ESC ? ESCAPE : TEXT;
+                    }
+                } else if (ch >= 0x40 && ch <= 0x7e) {
+                    state = TEXT;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Match a single line against the triggers.
+     *
+     * @param line
+     * @return the matching triggers in the order they were added
+     */
+    public List<Match> match(final CharSequence line) {
+        final List<Match> matches = match(compiled, line, null);
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        return matches;
+    }
+
+    private static List<Match> match(final Compiled c, final CharSequence line,
+            List<Match> matches) {
+        final BitSet candidates = new BitSet(c.triggers.length);
+        c.literals.match(line, candidates);
+        candidates.or(c.unfiltered);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates
+                .nextSetBit(i + 1)) {
+            final Trigger t = c.triggers[i];
+            final Matcher m = t.getPattern().matcher(line);
+            if (m.find()) {
+                final String[] argv = new String[m.groupCount() + 1];
+                argv[0] = t.getName();
+                for (int g = 1; g < argv.length; g++) {
+                    argv[g] = m.group(g);
+                }
+                if (matches == null) {
+                    matches = new ArrayList<Match>(2);
+                }
+                matches.add(new Match(t, argv));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Find the longest literal that every match of the pattern must contain.
+     * Only the top level of the pattern is examined.
+     *
+     * @param pattern
+     * @return null if no such literal was found
+     */
+    static String requiredLiteral(final Pattern pattern) {
+        final int flags = pattern.flags();
+        final String p = pattern.pattern();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return p.length() > 0 ? p : null;
+        }
+        if ((flags & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+        String best = "";
+        final StringBuilder run = new StringBuilder();
+        int depth = 0;
+        final int len = p.length();
+        for (int i = 0; i < len; i++) {
+            final char c = p.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= len) {
+                    break;
+                }
+                final char e = p.charAt(++i);
+                if (e == 'Q') {
+                    int end = p.indexOf("\\E", i + 1);
+                    if (end < 0) {
+                        end = len;
+                    }
+                    if (depth == 0) {
+                        run.append(p, i + 1, end);
+                    }
+                    i = end + 1;
+                } else if (Character.isLetterOrDigit(e)) {
+                    // Character class, back reference or boundary
+                    best = longer(best, run);
+                    i = skipEscape(p, i);
+                } else if (depth == 0) {
+                    run.append(e);
+                }
+            } else if (c == '[') {
+                best = longer(best, run);
+                i = skipClass(p, i);
+            } else if (c == '(') {
+                best = longer(best, run);
+                if (p.startsWith("(?", i) && hasCommentsFlag(p, i + 2)) {
+                    return null;
+                }
+                depth++;
+            } else if (c == ')') {
+                best = longer(best, run);
+                depth = Math.max(0, depth - 1);
+            } else if (depth > 0) {
+                continue;
+            } else if (c == '|') {
+                // Any alternative may match
+                return null;
+            } else if (c == '*' || c == '?' || c == '{') {
+                // The preceding character is optional
+                if (run.length() > 0) {
+                    run.setLength(run.length() - 1);
+                }
+                best = longer(best, run);
+                if (c == '{') {
+                    final int end = p.indexOf('}', i);
+                    i = end < 0 ? len : end;
+                }
+            } else if (c == '+' || c == '.' || c == '^' || c == '$') {
+                best = longer(best, run);
+            } else {
+                run.append(c);
+            }
+        }
+        best = longer(best, run);
+        return best.length() > 0 ? best : null;
+    }
+
+    private static String longer(final String best, final StringBuilder run) {
+        final String result = run.length() > best.length() ? run.toString()
+                : best;
+        run.setLength(0);
+        return result;
+    }
+
+    private static int skipClass(final String p, int i) {
+        final int len = p.length();
+        i++;
+        if (i < len && p.charAt(i) == '^') {
+            i++;
+        }
+        if (i < len && p.charAt(i) == ']') {
+            i++;
+        }
+        int nested = 0;
+        for (; i < len; i++) {
+            final char c = p.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                nested++;
+            } else if (c == ']') {
+                if (nested == 0) {
+                    return i;
+                }
+                nested--;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Skip the argument of an escape like <code>\x41</code> or
+     * <code>\p{Alpha}</code>.
+     *
+     * @return index of the last character of the escape
+     */
+    private static int skipEscape(final String p, final int i) {
+        final char e = p.charAt(i);
+        final boolean braces = i + 1 < p.length() && p.charAt(i + 1) == '{';
+        int end = i;
+        if (braces && (e == 'x' || e == 'p' || e == 'P' || e == 'N')) {
+            end = p.indexOf('}', i);
+        } else if (e == 'x') {
+            end = i + 2;
+        } else if (e == 'u') {
+            end = i + 4;
+        } else if (e == 'c' || e == 'p' || e == 'P') {
+            end = i + 1;
+        } else if (e == 'k') {
+            end = p.indexOf('>', i);
+        } else if (e >= '0' && e <= '9') {
+            // Octal escape or back reference, both end at a non-digit
+            while (end + 1 < p.length() && Character.isDigit(p.charAt(end + 1))) {
+                end++;
+            }
+        }
+        return end < 0 ? p.length() : Math.min(end, p.length());
+    }
+
+    private static boolean hasCommentsFlag(final String p, int i) {
+        for (; i < p.length(); i++) {
+            final char c = p.charAt(i);
+            if (c == 'x') {
+                return true;
+            }
+            if (c == ')' || c == ':' || !(Character.isLetter(c) || c == '-')) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
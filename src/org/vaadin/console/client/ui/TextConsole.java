@@ -42,6 +42,7 @@ public class TextConsole extends FocusWidget {
     public static final char CTRL_CARRIAGE_RETURN = 'M';
     public static final char CTRL_ESCAPE = '[';
     public static final char CTRL_DELETE = '?';
+    public static final char CTRL_INTERRUPT = 'C';
 
     private static final char[] CTRL = { CTRL_BELL, CTRL_BACKSPACE, CTRL_TAB,
             CTRL_LINE_FEED, CTRL_FORM_FEED, CTRL_CARRIAGE_RETURN, CTRL_ESCAPE,
@@ -58,6 +59,7 @@ public class TextConsole extends FocusWidget {
 
     private static final String DEFAULT_TABS = "    ";
     private static final int BIG_NUMBER = 100000;
+    private static final int MAX_ENTITY_LENGTH = 10;
     private final DivElement term;
     private TextConsoleConfig config;
     private TextConsoleHandler handler;
@@ -165,6 +167,13 @@ public class TextConsole extends FocusWidget {
                 } else if (event.getNativeKeyCode() == KeyCodes.KEY_BACKSPACE
                         && getInputLenght() == 0) {
                     bell();
+                } else if (event.getNativeEvent().getCtrlKey()
+                        && event.getNativeKeyCode() == CTRL_INTERRUPT) {
+                    // Ctrl-C still copies selected text
+                    if (!hasSelection(input)) {
+                        event.preventDefault();
+                        interrupt();
+                    }
                 } else if (event.getNativeEvent().getCtrlKey()) {
                     final char ctrlChar = getControlKey(event
                             .getNativeKeyCode());
@@ -208,6 +217,9 @@ public class TextConsole extends FocusWidget {
         case TextConsole.CTRL_FORM_FEED:
             formFeed();
             break;
+        case TextConsole.CTRL_INTERRUPT:
+            interrupt();
+            break;
         case TextConsole.CTRL_LINE_FEED:
             lineFeed();
             break;
@@ -225,6 +237,10 @@ public class TextConsole extends FocusWidget {
         // No suggest by default. Implement by subclassing.
     }
 
+    protected void interrupt() {
+        // No interrupt by default. Implement by subclassing.
+    }
+
     protected void handleCommandHistoryBrowse(final int i) {
         cmdHistoryIndex = i == KeyCodes.KEY_UP ? cmdHistoryIndex - 1
                 : cmdHistoryIndex + 1;
@@ -411,6 +427,19 @@ public class TextConsole extends FocusWidget {
                              }
                              }-*/;
 
+    private native boolean hasSelection(Element input)/*-{
+                                                       if (input.selectionStart != input.selectionEnd) {
+                                                       return true;
+                                                       }
+                                                       if ($wnd.getSelection) {
+                                                       return $wnd.getSelection().toString().length > 0;
+                                                       }
+                                                       if ($doc.selection) {
+                                                       return $doc.selection.createRange().text.length > 0;
+                                                       }
+                                                       return false;
+                                                       }-*/;
+
     private native int getScrollbarWidth()/*-{
 
                                           var i = $doc.createElement('p');
@@ -529,7 +558,9 @@ public class TextConsole extends FocusWidget {
     }
 
     /**
-     * Split long text based on length.
+     * Split long text based on length. Markup does not count towards the
+     * length; tags open at a split are closed and opened again on the next
+     * line.
      * 
      * @param parent
      * @param doWrap
@@ -544,13 +575,24 @@ public class TextConsole extends FocusWidget {
             // _log("append: '" + str + "'");
             linesAdded++;
         } else {
-            while (str.length() > maxLine) {
-                final String piece = str.substring(0, maxLine);
-                parent.appendChild(createTextNode(piece));
+            int split;
+            while ((split = findWrapIndex(str, maxLine)) < str.length()) {
+                final List<String> open = getOpenTags(str, split);
+                final StringBuilder piece = new StringBuilder(str.substring(0,
+                        split));
+                final StringBuilder rest = new StringBuilder();
+                for (int i = open.size() - 1; i >= 0; i--) {
+                    piece.append("</").append(getTagName(open.get(i)))
+                            .append('>');
+                }
+                for (final String tag : open) {
+                    rest.append(tag);
+                }
+                parent.appendChild(createTextNode(piece.toString()));
                 parent.appendChild(createBr());
                 linesAdded++;
                 // _log("append: '" + piece + "'");
-                str = str.substring(maxLine);
+                str = rest.append(str.substring(split)).toString();
             }
             parent.appendChild(createTextNode(str));
             // _log("append rest: '" + str + "'");
@@ -563,6 +605,68 @@ public class TextConsole extends FocusWidget {
         return linesAdded;
     }
 
+    /**
+     * Find the index after the given number of visible characters. Tags do
+     * not count and an entity counts as one character.
+     * 
+     * @param html
+     * @param maxLine
+     * @return the length of the string if it is not longer
+     */
+    private static int findWrapIndex(final String html, final int maxLine) {
+        final int len = html.length();
+        int visible = 0;
+        int i = 0;
+        while (i < len) {
+            final char c = html.charAt(i);
+            if (c == '<') {
+                final int end = html.indexOf('>', i);
+                if (end > i) {
+                    i = end + 1;
+                    continue;
+                }
+            }
+            if (visible == maxLine) {
+                return i;
+            }
+            visible++;
+            final int end = c == '&' ? html.indexOf(';', i) : -1;
+            i = end > i && end - i <= MAX_ENTITY_LENGTH ? end + 1 : i + 1;
+        }
+        return len;
+    }
+
+    /**
+     * Get the tags that are open at the given index, outermost first.
+     */
+    private static List<String> getOpenTags(final String html, final int end) {
+        final List<String> open = new ArrayList<String>();
+        int i = html.indexOf('<');
+        while (i >= 0 && i < end) {
+            final int close = html.indexOf('>', i);
+            if (close < 0 || close >= end) {
+                break;
+            }
+            if (html.charAt(i + 1) == '/') {
+                if (!open.isEmpty()) {
+                    open.remove(open.size() - 1);
+                }
+            } else if (html.charAt(close - 1) != '/') {
+                open.add(html.substring(i, close + 1));
+            }
+            i = html.indexOf('<', close);
+        }
+        return open;
+    }
+
+    private static String getTagName(final String tag) {
+        int end = 1;
+        while (end < tag.length() - 1 && tag.charAt(end) != ' ') {
+            end++;
+        }
+        return tag.substring(1, end);
+    }
+
     private void checkBufferLimit() {
 
         // Buffer means only offscreen lines
@@ -238,6 +238,15 @@ public class VTextConsole extends TextConsole implements Paintable,
         tx.commit();
     }
 
+    @Override
+    protected void interrupt() {
+        if (!initComplete) {
+            return;
+        }
+
+        comm.call("interrupt");
+    }
+
     public void initClientWidget(final Object[] params) {
         initComplete = true;
 
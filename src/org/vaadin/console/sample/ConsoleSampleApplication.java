@@ -6,7 +6,10 @@ import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.vaadin.console.CancellationToken;
+import org.vaadin.console.CommandMetrics;
 import org.vaadin.console.Console;
+import org.vaadin.console.Job;
 import org.vaadin.console.ObjectInspector;
 import org.vaadin.console.Console.Command;
 
@@ -85,6 +88,11 @@ public class ConsoleSampleApplication extends Application {
         console.addCommand("help", helpCommand);
         console.addCommand("info", helpCommand);
         console.addCommand("man", helpCommand);
+        console.addCommand("stats", new CommandMetrics.StatsCommand());
+        console.setJobControlEnabled(true);
+        console.addCommand("jobs", new Job.JobsCommand());
+        console.addCommand("fg", new Job.FgCommand());
+        console.addCommand("kill", new Job.KillCommand());
         // #
 
         // # 2
@@ -93,7 +101,18 @@ public class ConsoleSampleApplication extends Application {
 
             public Object execute(Console console, String[] argv)
                     throws Exception {
-                Process p = Runtime.getRuntime().exec(argv);
+                final Process p = Runtime.getRuntime().exec(argv);
+
+                // Ctrl-C kills the process
+                CancellationToken token = console.getCancellationToken();
+                if (token != null) {
+                    token.addCancelListener(new Runnable() {
+
+                        public void run() {
+                            p.destroy();
+                        }
+                    });
+                }
                 InputStream in = p.getInputStream();
                 StringBuilder o = new StringBuilder();
                 InputStreamReader r = new InputStreamReader(in);
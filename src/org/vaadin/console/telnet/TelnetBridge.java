@@ -0,0 +1,283 @@
+package org.vaadin.console.telnet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.vaadin.console.CommandExecutors;
+import org.vaadin.console.Console;
+import org.vaadin.console.Console.Command;
+import org.vaadin.console.DefaultConsoleHandler;
+
+import com.vaadin.Application;
+
+/**
+ * Connects a Console to a telnet (MUD) server.
+ *
+ * The bridge replaces the console handler: user input is sent to the server
+ * and server output is printed to the console as it arrives. Network I/O is
+ * done by a shared {@link TelnetReactor}, so a bridge does not use a thread of
+ * its own.
+ *
+ * Connection events are queued by the reactor thread and handled in order by
+ * a task of {@link CommandExecutors#getTaskExecutor()} holding the
+ * application lock, so a busy application does not hold up the other
+ * connections of the reactor. Server output reaches the browser on its next
+ * request to the server. Applications should poll the server while connected. The output is
+ * HTML escaped, so only the markup of the ANSI translation and the console
+ * styles is rendered; triggers match the escaped text.
+ *
+ */
+public class TelnetBridge implements Console.Handler,
+        TelnetConnection.Listener {
+
+    private static final long serialVersionUID = -3950816234718640932L;
+
+    // Events handled per application lock, so that a busy server does not
+    // keep the lock
+    private static final int MAX_EVENTS_PER_TASK = 256;
+
+    private final Console console;
+    private final String host;
+    private final int port;
+    private String charsetName = "UTF-8";
+    private final Console.Handler fallback = new DefaultConsoleHandler();
+    private transient TelnetConnection connection;
+    private transient Queue<Runnable> events;
+    private transient AtomicBoolean draining;
+
+    public TelnetBridge(final Console console, final String host,
+            final int port) {
+        this.console = console;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Connect to the server using the shared reactor.
+     *
+     * @throws IOException
+     */
+    public void connect() throws IOException {
+        connect(TelnetReactor.getShared());
+    }
+
+    /**
+     * Connect to the server using the given reactor.
+     *
+     * @param reactor
+     * @throws IOException
+     */
+    public void connect(final TelnetReactor reactor) throws IOException {
+        disconnect();
+        if (events == null) {
+            events = new ConcurrentLinkedQueue<Runnable>();
+            draining = new AtomicBoolean();
+        }
+        console.setHandler(this);
+        connection = reactor.connect(new InetSocketAddress(host, port), this,
+                Charset.forName(charsetName));
+    }
+
+    public void disconnect() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    public boolean isConnected() {
+        return connection != null && connection.isOpen();
+    }
+
+    public String getCharset() {
+        return charsetName;
+    }
+
+    /**
+     * Set the charset used by the server. Takes effect on the next connect.
+     *
+     * @param charsetName
+     */
+    public void setCharset(final String charsetName) {
+        this.charsetName = charsetName;
+    }
+
+    public TelnetConnection getConnection() {
+        return connection;
+    }
+
+    /* Console.Handler */
+
+    public Set<String> getSuggestions(final Console console,
+            final String lastInput) {
+        return null;
+    }
+
+    public void inputReceived(final Console console, final String lastInput) {
+        final TelnetConnection c = connection;
+        if (c != null && c.isOpen()) {
+            c.send(lastInput);
+        } else {
+            console.println("Not connected.");
+            console.prompt();
+        }
+    }
+
+    public void handleException(final Console console, final Exception e,
+            final Command cmd, final String[] argv) {
+        fallback.handleException(console, e, cmd, argv);
+    }
+
+    public void commandNotFound(final Console console, final String[] argv) {
+        fallback.commandNotFound(console, argv);
+    }
+
+    /* TelnetConnection.Listener */
+
+    public void connected(final TelnetConnection connection) {
+        post(new Runnable() {
+
+            public void run() {
+                printConnected();
+            }
+        });
+    }
+
+    public void received(final TelnetConnection connection, final String text) {
+        final String escaped = escapeHtml(text);
+        post(new Runnable() {
+
+            public void run() {
+                console.print(escaped);
+            }
+        });
+    }
+
+    public void promptReceived(final TelnetConnection connection) {
+        post(new Runnable() {
+
+            public void run() {
+                console.prompt();
+            }
+        });
+    }
+
+    public void disconnected(final TelnetConnection connection,
+            final IOException cause) {
+        post(new Runnable() {
+
+            public void run() {
+                printDisconnected(cause);
+            }
+        });
+    }
+
+    /**
+     * Queue an event from the reactor thread, which must not wait for the
+     * application lock.
+     */
+    private void post(final Runnable event) {
+        events.add(event);
+        startDrain();
+    }
+
+    private void startDrain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            CommandExecutors.getTaskExecutor().execute(new Runnable() {
+
+                public void run() {
+                    drainEvents();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            // Shut down
+            events.clear();
+            draining.set(false);
+        }
+    }
+
+    private void drainEvents() {
+        try {
+            final Application app = console.getApplication();
+            if (app != null) {
+                synchronized (app) {
+                    runEvents();
+                }
+            } else {
+                runEvents();
+            }
+        } finally {
+            draining.set(false);
+            if (!events.isEmpty()) {
+                startDrain();
+            }
+        }
+    }
+
+    private void runEvents() {
+        Runnable event;
+        for (int i = 0; i < MAX_EVENTS_PER_TASK
+                && (event = events.poll()) != null; i++) {
+            event.run();
+        }
+    }
+
+    private void printConnected() {
+        console.println(escapeHtml("Connected to " + host + ":" + port + "."));
+    }
+
+    private void printDisconnected(final IOException cause) {
+        console.println(escapeHtml("Connection closed"
+                + (cause != null ? ": " + cause.getMessage() : "") + "."));
+        console.prompt();
+    }
+
+    /**
+     * Escape the characters that are markup in HTML.
+     *
+     * @param text
+     * @return the original string if there is nothing to escape
+     */
+    static String escapeHtml(final String text) {
+        StringBuilder sb = null;
+        final int len = text.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            final String entity;
+            switch (text.charAt(i)) {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            default:
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(len + 16);
+            }
+            sb.append(text, start, i).append(entity);
+            start = i + 1;
+        }
+        if (sb == null) {
+            return text;
+        }
+        return sb.append(text, start, len).toString();
+    }
+}
@@ -0,0 +1,408 @@
+package org.vaadin.console.telnet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A single non-blocking telnet connection served by a {@link TelnetReactor}.
+ *
+ * Received data is decoded with the connection charset and handed to the
+ * {@link Listener} in the reactor thread once per network read. Option
+ * negotiation accepts the server side SGA, ECHO, EOR and MCCP2 (COMPRESS2)
+ * options and refuses everything else. As in RFC 1143, a request is answered
+ * only if it changes the state of the option, so a refusal is sent once per
+ * option and repeated requests cannot start a negotiation loop.
+ *
+ * With MCCP2 the server compresses everything after the start marker with
+ * zlib. The stream is inflated as it arrives using one Inflater per
+ * connection, which is reused if the server restarts compression.
+ *
+ */
+public class TelnetConnection implements TelnetParser.Handler {
+
+    private static final int DECODE_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Receiver of connection events. Called in the reactor thread.
+     */
+    public interface Listener {
+
+        void connected(TelnetConnection connection);
+
+        void received(TelnetConnection connection, String text);
+
+        /**
+         * The server marked the text received so far as a prompt (GA or EOR).
+         */
+        void promptReceived(TelnetConnection connection);
+
+        void disconnected(TelnetConnection connection, IOException cause);
+    }
+
+    private final TelnetReactor reactor;
+    private final SocketChannel channel;
+    private final Listener listener;
+    private final TelnetParser parser = new TelnetParser(this);
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private SelectionKey key;
+    private volatile boolean open = true;
+
+    // Remote options we have agreed to, indexed by option code
+    private final boolean[] remoteOptions = new boolean[256];
+    // Options already refused, requests for them are not answered again
+    private final boolean[] remoteRefused = new boolean[256];
+    private final boolean[] localRefused = new boolean[256];
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer decodeIn = ByteBuffer
+            .allocate(DECODE_BUFFER_SIZE);
+    private final CharBuffer decodeOut = CharBuffer
+            .allocate(DECODE_BUFFER_SIZE);
+    private final StringBuilder text = new StringBuilder();
+
+    private boolean compressionEnabled = true;
+    private boolean compressing;
+    private Inflater inflater;
+    private long compressedBytes;
+    private long inflatedBytes;
+
+    TelnetConnection(TelnetReactor reactor, SocketChannel channel,
+            Listener listener, Charset charset) {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.listener = listener;
+        this.charset = charset;
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Send a line of user input. Can be called from any thread.
+     *
+     * @param line
+     */
+    public void send(String line) {
+        byte[] bytes = (line + "\r\n").getBytes(charset);
+        sendRaw(escape(bytes));
+    }
+
+    /**
+     * Close the connection. Can be called from any thread.
+     */
+    public void close() {
+        if (open) {
+            reactor.requestClose(this);
+        }
+    }
+
+    void sendRaw(byte[] bytes) {
+        if (!open) {
+            return;
+        }
+        writeQueue.add(ByteBuffer.wrap(bytes));
+        reactor.requestWrite(this);
+    }
+
+    private static byte[] escape(byte[] bytes) {
+        int iacs = 0;
+        for (byte b : bytes) {
+            if ((b & 0xff) == TelnetParser.IAC) {
+                iacs++;
+            }
+        }
+        if (iacs == 0) {
+            return bytes;
+        }
+        byte[] escaped = new byte[bytes.length + iacs];
+        int j = 0;
+        for (byte b : bytes) {
+            escaped[j++] = b;
+            if ((b & 0xff) == TelnetParser.IAC) {
+                escaped[j++] = b;
+            }
+        }
+        return escaped;
+    }
+
+    /* Reactor thread methods */
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, channel.isConnectionPending()
+                || !channel.isConnected() ? SelectionKey.OP_CONNECT
+                : SelectionKey.OP_READ, this);
+        if (channel.isConnected()) {
+            listener.connected(this);
+            updateInterest();
+        }
+    }
+
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            listener.connected(this);
+            updateInterest();
+        }
+    }
+
+    void updateInterest() {
+        if (key == null || !key.isValid() || !channel.isConnected()) {
+            return;
+        }
+        key.interestOps(writeQueue.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void write() throws IOException {
+        ByteBuffer b;
+        while ((b = writeQueue.peek()) != null) {
+            channel.write(b);
+            if (b.hasRemaining()) {
+                return; // socket buffer full, wait for the next write event
+            }
+            writeQueue.poll();
+        }
+        updateInterest();
+    }
+
+    void received(byte[] buf, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            if (compressing) {
+                off += inflate(buf, off, len - off);
+            } else {
+                // Stops after the compression start marker
+                off += parser.parse(buf, off, len - off);
+            }
+        }
+        flushText();
+    }
+
+    /**
+     * Inflate and parse compressed data.
+     *
+     * @return number of bytes consumed. Less than <code>len</code> if the
+     *         compressed stream ended.
+     */
+    private int inflate(byte[] buf, int off, int len) throws IOException {
+        byte[] out = reactor.getInflateBuffer();
+        compressedBytes += len;
+        inflater.setInput(buf, off, len);
+        try {
+            while (true) {
+                int n = inflater.inflate(out);
+                if (n > 0) {
+                    inflatedBytes += n;
+                    parser.parse(out, 0, n);
+                }
+                if (inflater.finished()) {
+                    // Server ended compression, the rest is plain telnet
+                    int remaining = inflater.getRemaining();
+                    compressedBytes -= remaining;
+                    inflater.reset();
+                    compressing = false;
+                    return len - remaining;
+                }
+                if (n == 0
+                        && (inflater.needsInput() || inflater
+                                .needsDictionary())) {
+                    return len;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Check if MCCP2 compression is offered to the server on negotiation.
+     *
+     * @return
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Allow the server to enable MCCP2 compression. Affects negotiations
+     * after the call.
+     *
+     * @param compressionEnabled
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * Number of compressed bytes received.
+     *
+     * @return
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Number of bytes the compressed data inflated to.
+     *
+     * @return
+     */
+    public long getInflatedBytes() {
+        return inflatedBytes;
+    }
+
+    void failed(IOException e) {
+        close(e);
+    }
+
+    void closed() {
+        close(null);
+    }
+
+    private void close(IOException cause) {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+            compressing = false;
+        }
+        flushText();
+        listener.disconnected(this, cause);
+    }
+
+    private void flushText() {
+        if (text.length() > 0) {
+            String s = text.toString();
+            text.setLength(0);
+            listener.received(this, s);
+        }
+    }
+
+    /* TelnetParser.Handler */
+
+    public void data(byte[] buf, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, decodeIn.remaining());
+            decodeIn.put(buf, off, n);
+            off += n;
+            len -= n;
+            decodeIn.flip();
+            decoder.decode(decodeIn, decodeOut, false);
+            // Incomplete multibyte characters stay for the next read
+            decodeIn.compact();
+            decodeOut.flip();
+            while (decodeOut.hasRemaining()) {
+                char c = decodeOut.get();
+                if (c != '\r') { // lines end with CR LF on the wire
+                    text.append(c);
+                }
+            }
+            decodeOut.clear();
+        }
+    }
+
+    public void prompt() {
+        flushText();
+        listener.promptReceived(this);
+    }
+
+    public void option(int command, int option) {
+        if (command == TelnetParser.WILL) {
+            if (remoteOptions[option]) {
+                return; // already enabled
+            }
+            if (acceptRemoteOption(option)) {
+                remoteOptions[option] = true;
+                remoteRefused[option] = false;
+                sendCommand(TelnetParser.DO, option);
+            } else if (!remoteRefused[option]) {
+                remoteRefused[option] = true;
+                sendCommand(TelnetParser.DONT, option);
+            }
+        } else if (command == TelnetParser.WONT) {
+            if (remoteOptions[option]) {
+                remoteOptions[option] = false;
+                sendCommand(TelnetParser.DONT, option);
+            }
+        } else if (command == TelnetParser.DO) {
+            // No local options are supported, DONT needs no answer
+            if (!localRefused[option]) {
+                localRefused[option] = true;
+                sendCommand(TelnetParser.WONT, option);
+            }
+        }
+    }
+
+    public boolean subnegotiation(int option, byte[] buf, int len) {
+        if (option == TelnetParser.OPT_COMPRESS2
+                && remoteOptions[TelnetParser.OPT_COMPRESS2]) {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            compressing = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the server may enable the given option.
+     *
+     * @param option
+     * @return
+     */
+    boolean acceptRemoteOption(int option) {
+        return option == TelnetParser.OPT_SGA
+                || option == TelnetParser.OPT_ECHO
+                || option == TelnetParser.OPT_EOR
+                || (option == TelnetParser.OPT_COMPRESS2 && compressionEnabled);
+    }
+
+    boolean isRemoteOptionEnabled(int option) {
+        return remoteOptions[option];
+    }
+
+    void sendCommand(int command, int option) {
+        sendRaw(new byte[] { (byte) TelnetParser.IAC, (byte) command,
+                (byte) option });
+    }
+}
@@ -0,0 +1,161 @@
+package org.vaadin.console.telnet;
+
+/**
+ * Telnet protocol state machine.
+ *
+ * Separates data bytes from IAC commands and option negotiation. The parser
+ * keeps its state between calls, so commands may be split across network
+ * reads.
+ *
+ */
+public class TelnetParser {
+
+    public static final int IAC = 255;
+    public static final int DONT = 254;
+    public static final int DO = 253;
+    public static final int WONT = 252;
+    public static final int WILL = 251;
+    public static final int SB = 250;
+    public static final int GA = 249;
+    public static final int SE = 240;
+    public static final int EOR = 239;
+
+    public static final int OPT_ECHO = 1;
+    public static final int OPT_SGA = 3;
+    public static final int OPT_EOR = 25;
+    public static final int OPT_COMPRESS2 = 86;
+
+    private static final int MAX_SUBNEGOTIATION = 1024;
+
+    private static final int STATE_DATA = 0;
+    private static final int STATE_IAC = 1;
+    private static final int STATE_OPTION = 2;
+    private static final int STATE_SB = 3;
+    private static final int STATE_SB_IAC = 4;
+
+    /**
+     * Receiver of the parsed stream.
+     */
+    public interface Handler {
+
+        /**
+         * Data bytes between <code>off</code> and <code>off + len</code>.
+         * The array is reused after the call returns.
+         */
+        void data(byte[] buf, int off, int len);
+
+        /**
+         * Go ahead or end of record: the text received so far is a prompt.
+         */
+        void prompt();
+
+        /**
+         * Option negotiation command (WILL, WONT, DO or DONT).
+         */
+        void option(int command, int option);
+
+        /**
+         * Subnegotiation data without the surrounding IAC SB and IAC SE. The
+         * array is reused after the call returns.
+         *
+         * @return true if the rest of the buffer should not be parsed
+         */
+        boolean subnegotiation(int option, byte[] buf, int len);
+    }
+
+    private final Handler handler;
+    private int state = STATE_DATA;
+    private int command;
+    private final byte[] sb = new byte[MAX_SUBNEGOTIATION];
+    private int sbLength;
+
+    public TelnetParser(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Parse the next bytes of the stream.
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @return number of bytes consumed. Less than <code>len</code> if a
+     *         subnegotiation handler asked to stop parsing.
+     */
+    public int parse(byte[] buf, int off, int len) {
+        final int end = off + len;
+        int dataStart = off;
+        for (int i = off; i < end; i++) {
+            final int b = buf[i] & 0xff;
+            switch (state) {
+            case STATE_DATA:
+                if (b == IAC) {
+                    flush(buf, dataStart, i);
+                    state = STATE_IAC;
+                }
+                break;
+            case STATE_IAC:
+                state = STATE_DATA;
+                dataStart = i + 1;
+                if (b == IAC) {
+                    // Escaped 255 is data
+                    dataStart = i;
+                } else if (b == GA || b == EOR) {
+                    handler.prompt();
+                } else if (b >= WILL && b <= DONT) {
+                    command = b;
+                    state = STATE_OPTION;
+                } else if (b == SB) {
+                    sbLength = 0;
+                    state = STATE_SB;
+                }
+                break;
+            case STATE_OPTION:
+                handler.option(command, b);
+                state = STATE_DATA;
+                dataStart = i + 1;
+                break;
+            case STATE_SB:
+                if (b == IAC) {
+                    state = STATE_SB_IAC;
+                } else {
+                    appendSubnegotiation(b);
+                }
+                break;
+            case STATE_SB_IAC:
+                if (b == SE) {
+                    state = STATE_DATA;
+                    dataStart = i + 1;
+                    if (sbLength > 0
+                            && handler.subnegotiation(sb[0] & 0xff, sb,
+                                    sbLength)) {
+                        return i + 1 - off;
+                    }
+                } else {
+                    // IAC IAC inside subnegotiation
+                    appendSubnegotiation(b);
+                    state = STATE_SB;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        if (state == STATE_DATA) {
+            flush(buf, dataStart, end);
+        }
+        return len;
+    }
+
+    private void flush(byte[] buf, int start, int end) {
+        if (end > start) {
+            handler.data(buf, start, end - start);
+        }
+    }
+
+    private void appendSubnegotiation(int b) {
+        if (sbLength < sb.length) {
+            sb[sbLength++] = (byte) b;
+        }
+    }
+}
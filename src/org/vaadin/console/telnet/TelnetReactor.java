@@ -0,0 +1,207 @@
+package org.vaadin.console.telnet;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread serving any number of telnet connections.
+ *
+ * All network I/O happens in a single thread. Other threads hand work to it
+ * through lock-free queues and wake the selector up.
+ *
+ */
+public class TelnetReactor implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static TelnetReactor shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<TelnetConnection> registrations = new ConcurrentLinkedQueue<TelnetConnection>();
+    private final Queue<TelnetConnection> writeRequests = new ConcurrentLinkedQueue<TelnetConnection>();
+    private final Queue<TelnetConnection> closeRequests = new ConcurrentLinkedQueue<TelnetConnection>();
+
+    // Only used by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final byte[] inflateBuffer = new byte[READ_BUFFER_SIZE];
+    private volatile boolean running = true;
+
+    /**
+     * Get the reactor shared by all telnet connections of this JVM.
+     *
+     * @return
+     * @throws IOException
+     */
+    public static synchronized TelnetReactor getShared() throws IOException {
+        if (shared == null || !shared.running) {
+            shared = new TelnetReactor("telnet-reactor");
+        }
+        return shared;
+    }
+
+    /**
+     * Stop the shared reactor, closing its connections. A new one is started
+     * if {@link #getShared()} is called afterwards.
+     */
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.shutdown();
+            shared = null;
+        }
+    }
+
+    public TelnetReactor(String threadName) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open a new non-blocking connection.
+     *
+     * @param address
+     * @param listener
+     * @return
+     * @throws IOException
+     */
+    public TelnetConnection connect(InetSocketAddress address,
+            TelnetConnection.Listener listener) throws IOException {
+        return connect(address, listener, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Open a new non-blocking connection using the given charset for text.
+     *
+     * @param address
+     * @param listener
+     * @param charset
+     * @return
+     * @throws IOException
+     */
+    public TelnetConnection connect(InetSocketAddress address,
+            TelnetConnection.Listener listener, Charset charset)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        TelnetConnection c = new TelnetConnection(this, channel, listener,
+                charset);
+        registrations.add(c);
+        selector.wakeup();
+        return c;
+    }
+
+    /**
+     * Stop the selector thread and close all connections.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Scratch buffer for decompressed data, shared by all connections since
+     * they are only processed in the reactor thread.
+     */
+    byte[] getInflateBuffer() {
+        return inflateBuffer;
+    }
+
+    void requestWrite(TelnetConnection c) {
+        writeRequests.add(c);
+        selector.wakeup();
+    }
+
+    void requestClose(TelnetConnection c) {
+        closeRequests.add(c);
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                processQueues();
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    process(key);
+                }
+            }
+        } catch (IOException e) {
+            running = false;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((TelnetConnection) key.attachment()).closed();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+
+    private void processQueues() {
+        TelnetConnection c;
+        while ((c = registrations.poll()) != null) {
+            try {
+                c.register(selector);
+            } catch (IOException e) {
+                c.closed();
+            }
+        }
+        while ((c = writeRequests.poll()) != null) {
+            c.updateInterest();
+        }
+        while ((c = closeRequests.poll()) != null) {
+            c.closed();
+        }
+    }
+
+    private void process(SelectionKey key) {
+        TelnetConnection c = (TelnetConnection) key.attachment();
+        try {
+            if (!key.isValid()) {
+                c.closed();
+                return;
+            }
+            if (key.isConnectable()) {
+                c.finishConnect();
+            }
+            if (key.isValid() && key.isReadable()) {
+                readBuffer.clear();
+                int n = c.getChannel().read(readBuffer);
+                if (n < 0) {
+                    c.closed();
+                    return;
+                }
+                c.received(readBuffer.array(), n);
+            }
+            if (key.isValid() && key.isWritable()) {
+                c.write();
+            }
+        } catch (IOException e) {
+            c.failed(e);
+        } catch (RuntimeException e) {
+            // Listener failure must not stop the selector thread
+            c.failed(new IOException(e.toString()));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * BK-tree of strings under the Levenshtein distance.
+ *
+ * Finds the strings within a given edit distance of a query without
+ * computing the distance to every string: the children of a node are keyed
+ * by their distance to it, and by the triangle inequality only children
+ * whose key is within the search radius of the query's distance to the node
+ * can contain matches.
+ *
+ */
+public class BKTree implements Serializable {
+
+    private static final long serialVersionUID = 8837520549216346417L;
+
+    private Node root;
+    private int size;
+
+    public BKTree() {
+    }
+
+    public BKTree(Collection<String> words) {
+        for (String w : words) {
+            add(w);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add a string. Duplicates are ignored.
+     *
+     * @param word
+     */
+    public void add(String word) {
+        if (root == null) {
+            root = new Node(word);
+            size++;
+            return;
+        }
+        int[][] rows = new int[2][word.length() + 1];
+        Node n = root;
+        while (true) {
+            int d = distance(word, n.word, rows);
+            if (d == 0) {
+                return;
+            }
+            Node child = n.child(d);
+            if (child == null) {
+                n.addChild(d, new Node(word));
+                size++;
+                return;
+            }
+            n = child;
+        }
+    }
+
+    /**
+     * Find the strings within the given distance, closest first.
+     *
+     * @param query
+     * @param maxDistance
+     * @param limit
+     *            maximum number of results
+     * @return
+     */
+    public List<String> find(String query, int maxDistance, int limit) {
+        if (root == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        final List<Match> matches = new ArrayList<Match>();
+        int[][] rows = new int[2][query.length() + 1];
+        List<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            int d = distance(query, n.word, rows);
+            if (d <= maxDistance) {
+                matches.add(new Match(n.word, d));
+            }
+            for (int i = 0; i < n.count; i++) {
+                if (Math.abs(n.keys[i] - d) <= maxDistance) {
+                    stack.add(n.children[i]);
+                }
+            }
+        }
+        Collections.sort(matches, new Comparator<Match>() {
+
+            public int compare(Match a, Match b) {
+                if (a.distance != b.distance) {
+                    return a.distance - b.distance;
+                }
+                return a.word.compareTo(b.word);
+            }
+        });
+        List<String> result = new ArrayList<String>(Math.min(limit,
+                matches.size()));
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            result.add(matches.get(i).word);
+        }
+        return result;
+    }
+
+    /**
+     * Levenshtein distance using two rows of the given buffer, which must be
+     * at least <code>a.length() + 1</code> long.
+     */
+    private static int distance(String a, String b, int[][] rows) {
+        int[] prev = rows[0];
+        int[] cur = rows[1];
+        final int la = a.length();
+        for (int i = 0; i <= la; i++) {
+            prev[i] = i;
+        }
+        for (int j = 1; j <= b.length(); j++) {
+            final char c = b.charAt(j - 1);
+            cur[0] = j;
+            for (int i = 1; i <= la; i++) {
+                int cost = a.charAt(i - 1) == c ? 0 : 1;
+                cur[i] = Math.min(Math.min(cur[i - 1] + 1, prev[i] + 1),
+                        prev[i - 1] + cost);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[la];
+    }
+
+    private static class Match {
+
+        final String word;
+        final int distance;
+
+        Match(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+    }
+
+    private static class Node implements Serializable {
+
+        private static final long serialVersionUID = -2180440530961386306L;
+
+        final String word;
+        int[] keys = new int[0];
+        Node[] children = new Node[0];
+        int count;
+
+        Node(String word) {
+            this.word = word;
+        }
+
+        Node child(int d) {
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == d) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int d, Node child) {
+            if (count == keys.length) {
+                int capacity = Math.max(4, count * 2);
+                int[] k = new int[capacity];
+                Node[] c = new Node[capacity];
+                System.arraycopy(keys, 0, k, 0, count);
+                System.arraycopy(children, 0, c, 0, count);
+                keys = k;
+                children = c;
+            }
+            keys[count] = d;
+            children[count++] = child;
+        }
+    }
+}
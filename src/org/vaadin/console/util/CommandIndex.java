@@ -0,0 +1,209 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Prefix index over command names.
+ *
+ * The names are kept in a sorted array, and a trie maps each prefix to the
+ * range of names starting with it. Finding the names with a given prefix
+ * takes time proportional to the prefix length, and the result is a view of
+ * the range, so iterating it costs only the number of matches. Instances are
+ * immutable and can be shared between threads.
+ *
+ */
+public class CommandIndex implements Serializable {
+
+    private static final long serialVersionUID = 4290366715904963386L;
+
+    /** Index with no names. */
+    public static final CommandIndex EMPTY = new CommandIndex(
+            new TreeSet<String>());
+
+    private final String[] names;
+    private final Node root;
+
+    /**
+     * Create an index over the given names.
+     *
+     * @param names
+     */
+    public CommandIndex(Collection<String> names) {
+        this.names = new TreeSet<String>(names).toArray(new String[0]);
+        root = build(0, this.names.length, 0);
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Get all names in sorted order.
+     *
+     * @return
+     */
+    public Set<String> getAll() {
+        return new Range(0, names.length);
+    }
+
+    public boolean contains(String name) {
+        return name != null && Arrays.binarySearch(names, name) >= 0;
+    }
+
+    /**
+     * Get the names starting with the given prefix in sorted order.
+     *
+     * @param prefix
+     * @return
+     */
+    public Set<String> startingWith(String prefix) {
+        Node n = find(prefix);
+        return n == null ? new Range(0, 0) : new Range(n.from, n.to);
+    }
+
+    /**
+     * Resolve an abbreviation. An exact match wins. Otherwise the prefix must
+     * match exactly one name, or the shortest match must be a prefix of all
+     * the others ("no" is "north" even if "northeast" exists).
+     *
+     * @param prefix
+     * @return the matching name or null if there is none or the abbreviation
+     *         is ambiguous
+     */
+    public String resolve(String prefix) {
+        Node n = find(prefix);
+        if (n == null || prefix.length() == 0) {
+            return null;
+        }
+        // The range is sorted, so a name that is a prefix of the last one is
+        // a prefix of all of them. This includes an exact match.
+        if (names[n.to - 1].startsWith(names[n.from])) {
+            return names[n.from];
+        }
+        return null;
+    }
+
+    private Node find(String prefix) {
+        if (prefix == null) {
+            return null;
+        }
+        Node n = root;
+        for (int i = 0; n != null && i < prefix.length(); i++) {
+            n = n.child(prefix.charAt(i));
+        }
+        return n;
+    }
+
+    /**
+     * Build the trie node for names in <code>[from, to)</code>, which share
+     * a prefix of the given length.
+     */
+    private Node build(int from, int to, int depth) {
+        Node n = new Node();
+        n.from = from;
+        n.to = to;
+
+        // Names equal to the shared prefix sort first
+        int i = from;
+        while (i < to && names[i].length() == depth) {
+            i++;
+        }
+        int count = 0;
+        for (int j = i; j < to; j++) {
+            if (j == i || names[j].charAt(depth) != names[j - 1].charAt(depth)) {
+                count++;
+            }
+        }
+        n.keys = new char[count];
+        n.children = new Node[count];
+        int k = 0;
+        while (i < to) {
+            char c = names[i].charAt(depth);
+            int end = i + 1;
+            while (end < to && names[end].charAt(depth) == c) {
+                end++;
+            }
+            n.keys[k] = c;
+            n.children[k++] = build(i, end, depth + 1);
+            i = end;
+        }
+        return n;
+    }
+
+    private static class Node implements Serializable {
+
+        private static final long serialVersionUID = -5716128826104787227L;
+
+        // Sorted for binary search
+        char[] keys;
+        Node[] children;
+        // Range of names with this prefix
+        int from;
+        int to;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+    }
+
+    /**
+     * Read-only view of a range of the sorted names.
+     */
+    private class Range extends AbstractSet<String> implements Serializable {
+
+        private static final long serialVersionUID = 8261004979350931734L;
+
+        private final int from;
+        private final int to;
+
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof String)) {
+                return false;
+            }
+            int i = Arrays.binarySearch(names, from, to, o);
+            return i >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+
+                private int i = from;
+
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                public String next() {
+                    if (i >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return names[i++];
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
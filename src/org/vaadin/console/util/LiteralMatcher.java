@@ -0,0 +1,175 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over a set of literal strings.
+ *
+ * Finds all literals occurring in a text in a single pass, so the cost of a
+ * search depends on the length of the text and not on the number of
+ * literals. Matching ignores case. Instances are immutable and can be shared
+ * between threads.
+ *
+ */
+public class LiteralMatcher implements Serializable {
+
+    private static final long serialVersionUID = -2317816385569270451L;
+
+    private static final int[] NO_OUTPUT = new int[0];
+
+    // Transitions of each state, keys sorted for binary search
+    private final char[][] keys;
+    private final int[][] next;
+    private final int[] fail;
+    // Literal ids ending at each state, including those reached by fail links
+    private final int[][] output;
+
+    /**
+     * Compile the given literals. The id of a literal is its index in the
+     * array. Null and empty literals are ignored.
+     *
+     * @param literals
+     */
+    public LiteralMatcher(String[] literals) {
+        List<Builder> states = new ArrayList<Builder>();
+        Builder root = new Builder();
+        states.add(root);
+        for (int id = 0; id < literals.length; id++) {
+            String literal = literals[id];
+            if (literal == null || literal.length() == 0) {
+                continue;
+            }
+            Builder b = root;
+            for (int i = 0; i < literal.length(); i++) {
+                Character c = fold(literal.charAt(i));
+                Builder n = b.children.get(c);
+                if (n == null) {
+                    n = new Builder();
+                    n.index = states.size();
+                    states.add(n);
+                    b.children.put(c, n);
+                }
+                b = n;
+            }
+            b.output.add(id);
+        }
+
+        int size = states.size();
+        keys = new char[size][];
+        next = new int[size][];
+        fail = new int[size];
+        output = new int[size][];
+
+        // Breadth first, so that fail targets are complete before use
+        List<Builder> queue = new ArrayList<Builder>();
+        queue.add(root);
+        for (int q = 0; q < queue.size(); q++) {
+            Builder b = queue.get(q);
+            int s = b.index;
+            keys[s] = new char[b.children.size()];
+            next[s] = new int[b.children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> e : b.children.entrySet()) {
+                keys[s][i] = e.getKey();
+                Builder child = e.getValue();
+                next[s][i++] = child.index;
+                child.parent = s;
+                child.key = e.getKey();
+                queue.add(child);
+            }
+            if (s != 0) {
+                int f = b.parent == 0 ? 0 : step(fail[b.parent], b.key);
+                fail[s] = f;
+                if (output[f].length > 0) {
+                    b.output.addAll(asList(output[f]));
+                }
+            }
+            output[s] = toArray(b.output);
+        }
+    }
+
+    /**
+     * Check if there are no literals to match.
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return keys[0].length == 0;
+    }
+
+    /**
+     * Find the literals occurring in the given text.
+     *
+     * @param text
+     * @param found
+     *            the ids of the found literals are set in this set
+     */
+    public void match(CharSequence text, BitSet found) {
+        if (isEmpty()) {
+            return;
+        }
+        int s = 0;
+        final int len = text.length();
+        for (int i = 0; i < len; i++) {
+            s = step(s, fold(text.charAt(i)));
+            final int[] out = output[s];
+            for (int j = 0; j < out.length; j++) {
+                found.set(out[j]);
+            }
+        }
+    }
+
+    private int step(int s, char c) {
+        while (true) {
+            int i = Arrays.binarySearch(keys[s], c);
+            if (i >= 0) {
+                return next[s][i];
+            }
+            if (s == 0) {
+                return 0;
+            }
+            s = fail[s];
+        }
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    private static List<Integer> asList(int[] a) {
+        List<Integer> l = new ArrayList<Integer>(a.length);
+        for (int i : a) {
+            l.add(i);
+        }
+        return l;
+    }
+
+    private static int[] toArray(List<Integer> l) {
+        if (l.isEmpty()) {
+            return NO_OUTPUT;
+        }
+        int[] a = new int[l.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+
+    /**
+     * Trie node used while building the automaton.
+     */
+    private static class Builder {
+
+        final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+        final List<Integer> output = new ArrayList<Integer>(1);
+        int index;
+        int parent;
+        char key;
+    }
+}
@@ -0,0 +1,207 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * Bounded buffer of the most recent output lines.
+ *
+ * Text is stored UTF-8 encoded in a single byte ring, with the start
+ * position of each line in a second ring. When the line or byte limit is
+ * exceeded, whole lines are dropped from the beginning. The ring grows on
+ * demand up to the byte limit. Not thread-safe.
+ *
+ */
+public class ScrollbackBuffer implements Serializable {
+
+    private static final long serialVersionUID = -3874526806138720014L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Default byte limit per line of the line limit. */
+    public static final int DEFAULT_BYTES_PER_LINE = 128;
+
+    private final int maxLines;
+    private final int maxBytes;
+
+    private byte[] data;
+    // Absolute positions, the ring index is position % data.length
+    private long start;
+    private long end;
+
+    // Start positions of the retained lines, the last one may be incomplete
+    private final long[] lineStarts;
+    private int firstLine;
+    private int lineCount;
+    private boolean lineOpen;
+
+    /**
+     * Create a buffer keeping at most <code>maxLines</code> lines and
+     * {@link #DEFAULT_BYTES_PER_LINE} bytes per line on average.
+     *
+     * @param maxLines
+     */
+    public ScrollbackBuffer(int maxLines) {
+        this(maxLines, maxLines * DEFAULT_BYTES_PER_LINE);
+    }
+
+    public ScrollbackBuffer(int maxLines, int maxBytes) {
+        if (maxLines < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Limits must be positive");
+        }
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        lineStarts = new long[maxLines];
+        data = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Get the size of the retained text in bytes.
+     *
+     * @return
+     */
+    public int getSize() {
+        return (int) (end - start);
+    }
+
+    /**
+     * Append output text.
+     *
+     * @param text
+     */
+    public void append(String text) {
+        if (text == null || text.length() == 0) {
+            return;
+        }
+        byte[] bytes = text.getBytes(UTF8);
+        int off = 0;
+        while (off < bytes.length) {
+            if (!lineOpen) {
+                startLine();
+            }
+            int nl = indexOf(bytes, (byte) '\n', off);
+            int to = nl < 0 ? bytes.length : nl + 1;
+            write(bytes, off, to - off);
+            off = to;
+            if (nl >= 0) {
+                lineOpen = false;
+            }
+        }
+    }
+
+    /**
+     * Get the retained text.
+     *
+     * @return
+     */
+    public String getText() {
+        int size = getSize();
+        if (size == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[size];
+        int from = (int) (start % data.length);
+        int first = Math.min(size, data.length - from);
+        System.arraycopy(data, from, bytes, 0, first);
+        System.arraycopy(data, 0, bytes, first, size - first);
+        return new String(bytes, UTF8);
+    }
+
+    public void clear() {
+        start = end;
+        firstLine = 0;
+        lineCount = 0;
+        lineOpen = false;
+    }
+
+    private void startLine() {
+        if (lineCount == maxLines) {
+            dropFirstLine();
+        }
+        lineStarts[(firstLine + lineCount) % maxLines] = end;
+        lineCount++;
+        lineOpen = true;
+    }
+
+    private void dropFirstLine() {
+        if (lineCount > 1) {
+            firstLine = (firstLine + 1) % maxLines;
+            lineCount--;
+            start = lineStarts[firstLine];
+        } else {
+            clear();
+        }
+    }
+
+    /**
+     * Write bytes to the current line, dropping old lines to make room.
+     */
+    private void write(byte[] bytes, int off, int len) {
+        if (len > maxBytes) {
+            // Only the end of an overlong line is kept
+            off += len - maxBytes;
+            len = maxBytes;
+        }
+        while (end - start + len > maxBytes && lineCount > 1) {
+            dropFirstLine();
+        }
+        ensureCapacity(end - start + len);
+        for (int written = 0; written < len;) {
+            int to = (int) (end % data.length);
+            int n = Math.min(len - written, data.length - to);
+            System.arraycopy(bytes, off + written, data, to, n);
+            written += n;
+            end += n;
+        }
+        if (end - start > data.length) {
+            // The current line alone is over the limit, cut its beginning
+            start = end - data.length;
+            while (start < end
+                    && (data[(int) (start % data.length)] & 0xc0) == 0x80) {
+                start++; // do not split a character
+            }
+            lineStarts[firstLine] = start;
+        }
+    }
+
+    /**
+     * Grow the ring, up to the byte limit.
+     */
+    private void ensureCapacity(long needed) {
+        if (needed <= data.length || data.length >= maxBytes) {
+            return;
+        }
+        int capacity = data.length;
+        while (capacity < needed && capacity < maxBytes) {
+            capacity = (int) Math.min((long) capacity * 2, maxBytes);
+        }
+        // Copy so that the ring index is still position % capacity
+        byte[] grown = new byte[capacity];
+        for (long p = start; p < end; p++) {
+            grown[(int) (p % capacity)] = data[(int) (p % data.length)];
+        }
+        data = grown;
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
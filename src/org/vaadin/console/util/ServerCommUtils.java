@@ -2,9 +2,22 @@ package org.vaadin.console.util;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.vaadin.terminal.PaintException;
 import com.vaadin.terminal.PaintTarget;
@@ -26,14 +39,70 @@ public class ServerCommUtils implements Serializable {
 
     private static final long serialVersionUID = 4687944475579171126L;
     private static final String CLIENT_INIT = "_init";
+    private static final String SUPPRESSED_MARKER = "_suppressed";
+    private static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+
+    /**
+     * What to do when a limited call would exceed the pending call or
+     * character limit.
+     */
+    public enum OverflowPolicy {
+
+        /** Wait until the client has been painted (or timeout). */
+        BLOCK,
+
+        /**
+         * Drop the oldest pending limited calls, or only their oldest lines
+         * when just the character limit is exceeded.
+         */
+        DROP_OLDEST,
+
+        /** Drop the new call and send a "[N lines suppressed]" marker. */
+        SUPPRESS
+    }
 
     private CallableComponent component;
-    private List<Object[]> clientCallQueue = new ArrayList<Object[]>();
+    // Multi-producer, single-consumer: calls are queued from any thread and
+    // drained by paintContent.
+    private final Queue<PendingCall> clientCallQueue = new ConcurrentLinkedQueue<PendingCall>();
     private boolean pendingClientInit;
     private Object[] clientInitParams;
     private boolean initSent;
 
+    // Limits apply only to the registered (output) methods
+    private final Set<String> limitedMethods = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile int maxPendingCalls = -1;
+    private volatile long maxPendingChars = -1;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+    private volatile String suppressionMarkerMethod;
+    private final AtomicInteger pendingCalls = new AtomicInteger();
+    private final AtomicLong pendingChars = new AtomicLong();
+    private final AtomicLong suppressedLines = new AtomicLong();
+    private final AtomicLongArray overflowCounts = new AtomicLongArray(
+            OverflowPolicy.values().length);
+
+    // Adjacent calls of this method are merged into a single call
+    private volatile String coalescedMethod;
+    private volatile PendingCall openBatch;
+
+    // Pending call state by method name
+    private final ConcurrentMap<String, MethodIndex> callIndex = new ConcurrentHashMap<String, MethodIndex>();
+
+    // Sent text replayed after an init, only written by the painting thread
+    private volatile String replayMethod;
+    private volatile ScrollbackBuffer replayBuffer;
+    private final Set<String> replayClearingMethods = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Set<String> replayLineBreakMethods = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Set from the first queued call until the next paint
+    private final AtomicBoolean repaintRequested = new AtomicBoolean();
+
     private Map<String, String> styles = new HashMap<String, String>();
+    private volatile StyleTags styleTags = StyleTags.EMPTY;
 
     public interface CallableComponent extends Serializable {
 
@@ -41,6 +110,12 @@ public class ServerCommUtils implements Serializable {
 
         public void clientCalls(String method, Object[] params);
 
+        /**
+         * Request a repaint of the component. Called from the thread queuing
+         * a call, which may not hold the application lock; the implementation
+         * must then request the repaint under the lock itself. Requests are
+         * not repeated until the component has been painted.
+         */
         public void requestRepaint();
     }
 
@@ -80,12 +155,26 @@ public class ServerCommUtils implements Serializable {
         }
     }
 
+    /**
+     * Queue a call to the client. Can be called from any thread.
+     * 
+     * @param method
+     * @param param
+     */
     public void call(String method, Object... param) {
         queueClientCall(method, param);
-        component.requestRepaint();
+        requestRepaint();
+    }
+
+    private void requestRepaint() {
+        if (repaintRequested.compareAndSet(false, true)) {
+            component.requestRepaint();
+        }
     }
 
     public void paintContent(PaintTarget target) throws PaintException {
+        // Calls queued from now on need a new repaint
+        repaintRequested.set(false);
 
         // TODO: Validate this behavior
         // Ask init 1) when explicitly asked 2) when no client calls has been
@@ -110,17 +199,46 @@ public class ServerCommUtils implements Serializable {
             paintCallParameters(target, clientInitParams, 0);
             target.endTag("c");
             clientInitParams = null;
+
+            // The client starts empty, give back what it had been sent
+            ScrollbackBuffer replay = replayBuffer;
+            if (replay != null && replay.getSize() > 0) {
+                target.startTag("c");
+                target.addAttribute("n", replayMethod);
+                paintCallParameters(target, new Object[] { replayMethod,
+                        replay.getText() }, 1);
+                target.endTag("c");
+            }
         }
 
         try {
-            ArrayList<Object[]> tmpCalls = new ArrayList<Object[]>(
-                    clientCallQueue); // copy
-            for (Object[] aCall : tmpCalls) {
+            // Calls queued while painting are sent in this same pass
+            PendingCall pc;
+            while ((pc = clientCallQueue.poll()) != null) {
+                if (!pc.claim()) {
+                    continue; // dropped by a producer
+                }
+                Object[] aCall = pc.call;
+                if (aCall[0] == SUPPRESSED_MARKER) {
+                    aCall = suppressionMarker();
+                    if (aCall[0] == null) {
+                        continue;
+                    }
+                } else {
+                    boolean send = pc.index.sent(pc);
+                    sealBatch(aCall);
+                    if (limitedMethods.contains(aCall[0])) {
+                        releaseCapacity(aCall);
+                    }
+                    if (!send) {
+                        continue;
+                    }
+                }
+                recordSent(aCall);
                 target.startTag("c");
                 target.addAttribute("n", (String) aCall[0]);
                 paintCallParameters(target, aCall, 1);
                 target.endTag("c");
-                clientCallQueue.remove(aCall);
             }
         } catch (Throwable e) {
             throw new PaintException(e.getMessage());
@@ -169,69 +287,689 @@ public class ServerCommUtils implements Serializable {
         receiveCallsFromClient(variables);
     }
 
-    private synchronized void queueClientCall(String method, Object... params) {
+    private static Object[] toCall(String method, Object... params) {
         Object[] call = new Object[params.length + 1];
         call[0] = method;
         for (int i = 0; i < params.length; i++) {
             call[i + 1] = params[i];
         }
-        clientCallQueue.add(call);
+        return call;
+    }
+
+    private void queueClientCall(String method, Object... params) {
+        Object[] call = toCall(method, params);
+        boolean limited = limitedMethods.contains(method);
+        boolean coalesced = method.equals(coalescedMethod)
+                && params.length == 1 && params[0] instanceof String;
+        // Text merged into the open batch only adds characters
+        boolean newCall = !coalesced || !canMerge();
+        if (limited && !reserveCapacity(call, newCall)) {
+            return;
+        }
+        if (coalesced) {
+            queueCoalescedCall(call, limited, newCall);
+        } else {
+            clientCallQueue.add(getIndex(method).queued(call));
+            openBatch = null; // following output must not jump over this
+        }
+    }
+
+    private boolean canMerge() {
+        PendingCall batchCall = openBatch;
+        return batchCall != null && batchCall.isLive()
+                && batchCall.batch.isOpen();
+    }
+
+    /**
+     * Append text to the open batch or start a new one.
+     * 
+     * @param callReserved
+     *            true if capacity was reserved for a new call
+     */
+    private void queueCoalescedCall(Object[] call, boolean limited,
+            boolean callReserved) {
+        String text = (String) call[1];
+        PendingCall batchCall = openBatch;
+        if (batchCall != null && batchCall.isLive()
+                && batchCall.batch.append(text)) {
+            if (limited && callReserved) {
+                // Merged into a pending call, only the characters count
+                pendingCalls.decrementAndGet();
+            }
+            return;
+        }
+        if (limited && !callReserved) {
+            // The batch was painted or dropped meanwhile
+            pendingCalls.incrementAndGet();
+        }
+        OutputBatch batch = new OutputBatch(text);
+        call[1] = batch;
+        batchCall = getIndex((String) call[0]).queued(call);
+        batchCall.batch = batch;
+        openBatch = batchCall;
+        clientCallQueue.add(batchCall);
+    }
+
+    private MethodIndex getIndex(String method) {
+        MethodIndex index = callIndex.get(method);
+        if (index == null) {
+            index = new MethodIndex();
+            MethodIndex existing = callIndex.putIfAbsent(method, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Queued call with the generation of its method at the time of queuing.
+     */
+    private static class PendingCall implements Serializable {
+
+        private static final long serialVersionUID = 5226187402834531207L;
+
+        private final Object[] call;
+        private final MethodIndex index;
+        private final int generation;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private OutputBatch batch;
+
+        PendingCall(Object[] call, MethodIndex index, int generation) {
+            this.call = call;
+            this.index = index;
+            this.generation = generation;
+        }
+
+        /**
+         * Take the call out of the queue for painting or dropping. Only one
+         * of the two succeeds.
+         */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        boolean isLive() {
+            return generation == index.generation.get();
+        }
+    }
+
+    /**
+     * Pending call state of a single method.
+     * 
+     * Cancelling increments the generation, which invalidates all calls
+     * queued before it; only calls of limited methods are also removed from
+     * the queue, to free their capacity. The latest queued call
+     * tells whether anything is pending and, for "last write wins" methods,
+     * which call to send.
+     */
+    private static class MethodIndex implements Serializable {
+
+        private static final long serialVersionUID = -3420784133357209646L;
+
+        private final AtomicInteger generation = new AtomicInteger();
+        private final AtomicReference<PendingCall> latest = new AtomicReference<PendingCall>();
+        private volatile boolean replaceable;
+
+        PendingCall queued(Object[] call) {
+            PendingCall pc = new PendingCall(call, this, generation.get());
+            // Set before queuing so that a replaced call is never painted
+            // after this one
+            latest.set(pc);
+            return pc;
+        }
+
+        /**
+         * Called when the call is removed from the queue.
+         * 
+         * @return true if the call should be sent to the client.
+         */
+        boolean sent(PendingCall pc) {
+            boolean wasLatest = latest.compareAndSet(pc, null);
+            return pc.isLive() && (wasLatest || !replaceable);
+        }
+
+        /**
+         * Called when the call is dropped from the queue unsent.
+         */
+        void dropped(PendingCall pc) {
+            latest.compareAndSet(pc, null);
+        }
+
+        boolean isSuperseded(PendingCall pc) {
+            return !pc.isLive() || (replaceable && latest.get() != pc);
+        }
+
+        boolean isPending() {
+            PendingCall pc = latest.get();
+            return pc != null && pc.isLive();
+        }
+
+        void cancel() {
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Replace a pending batch parameter with the final merged string.
+     */
+    private static void sealBatch(Object[] call) {
+        if (call.length == 2 && call[1] instanceof OutputBatch) {
+            call[1] = ((OutputBatch) call[1]).seal();
+        }
+    }
+
+    /**
+     * String parameter that can be appended to until it is painted.
+     * 
+     * Appending is lock-free: writers register in a counter which the painter
+     * marks sealed, after which new writers start a new batch. The painter
+     * only waits for the writers that were already appending.
+     */
+    private static class OutputBatch implements Serializable {
+
+        private static final long serialVersionUID = -2719358617416003924L;
+        private static final int SEALED = 0x80000000;
+
+        private final AtomicInteger writers = new AtomicInteger();
+        private final Queue<String> parts = new ConcurrentLinkedQueue<String>();
+        private final AtomicLong length = new AtomicLong();
+        private String sealed;
+        // Characters trimmed from the first part, guarded by this
+        private int headSkip;
+
+        OutputBatch(String first) {
+            parts.add(first);
+            length.set(first.length());
+        }
+
+        boolean append(String text) {
+            if (!register()) {
+                return false;
+            }
+            try {
+                parts.add(text);
+                length.addAndGet(text.length());
+            } finally {
+                writers.decrementAndGet();
+            }
+            return true;
+        }
+
+        private boolean register() {
+            int w;
+            do {
+                w = writers.get();
+                if ((w & SEALED) != 0) {
+                    return false;
+                }
+            } while (!writers.compareAndSet(w, w + 1));
+            return true;
+        }
+
+        boolean isOpen() {
+            return (writers.get() & SEALED) == 0;
+        }
+
+        boolean isEmpty() {
+            return length.get() == 0;
+        }
+
+        /**
+         * Remove at least the given number of characters from the start,
+         * cutting after a line break or between appended parts so that
+         * markup is not split. Nothing is removed once painting has started.
+         * 
+         * @return the number of characters removed
+         */
+        synchronized long trim(long chars) {
+            if (!register()) {
+                return 0;
+            }
+            try {
+                long removed = 0;
+                String head;
+                while (removed < chars && (head = parts.peek()) != null) {
+                    int end = headSkip + (int) Math.min(chars - removed,
+                            head.length() - headSkip);
+                    int lineEnd = end > 0 ? head.indexOf('\n', end - 1) : -1;
+                    if (end >= head.length() || lineEnd < 0
+                            || lineEnd == head.length() - 1) {
+                        // Appenders only add to the tail
+                        parts.poll();
+                        removed += head.length() - headSkip;
+                        headSkip = 0;
+                    } else {
+                        removed += lineEnd + 1 - headSkip;
+                        headSkip = lineEnd + 1;
+                    }
+                }
+                length.addAndGet(-removed);
+                return removed;
+            } finally {
+                writers.decrementAndGet();
+            }
+        }
+
+        String seal() {
+            if (sealed != null) {
+                return sealed;
+            }
+            int w;
+            do {
+                w = writers.get();
+            } while (!writers.compareAndSet(w, w | SEALED));
+            while ((writers.get() & ~SEALED) != 0) {
+                Thread.yield();
+            }
+            StringBuilder sb = new StringBuilder((int) length.get());
+            synchronized (this) {
+                int skip = headSkip;
+                for (String p : parts) {
+                    sb.append(p, skip, p.length());
+                    skip = 0;
+                }
+            }
+            sealed = sb.toString();
+            return sealed;
+        }
+    }
+
+    /**
+     * Reserve queue capacity for a limited call and apply the overflow policy
+     * if the limits are exceeded.
+     * 
+     * @param newCall
+     *            false if the text is merged into a pending call
+     * @return true if the call should be queued.
+     */
+    private boolean reserveCapacity(Object[] call, boolean newCall) {
+        long chars = countChars(call);
+        int calls = newCall ? pendingCalls.incrementAndGet() : pendingCalls
+                .get();
+        long totalChars = pendingChars.addAndGet(chars);
+        if (!isOverLimit(calls, totalChars, chars)) {
+            return true;
+        }
+
+        OverflowPolicy policy = overflowPolicy;
+        overflowCounts.incrementAndGet(policy.ordinal());
+        if (policy == OverflowPolicy.SUPPRESS) {
+            pendingChars.addAndGet(-chars);
+            if (newCall) {
+                pendingCalls.decrementAndGet();
+            }
+            if (suppressedLines.getAndAdd(countLines(call)) == 0) {
+                // First suppressed call queues the marker
+                clientCallQueue.add(new PendingCall(
+                        new Object[] { SUPPRESSED_MARKER }, null, 0));
+                openBatch = null; // later output goes after the marker
+            }
+            return false;
+        }
+        if (policy == OverflowPolicy.BLOCK && awaitCapacity(chars)) {
+            return true;
+        }
+
+        // Drop oldest (also when blocking timed out). Over the character
+        // limit only, the oldest lines of a batch are enough.
+        Iterator<PendingCall> i = clientCallQueue.iterator();
+        while (isOverLimit(pendingCalls.get(), pendingChars.get(), chars)
+                && i.hasNext()) {
+            PendingCall pc = i.next();
+            if (!limitedMethods.contains(pc.call[0])) {
+                continue;
+            }
+            int maxCalls = maxPendingCalls;
+            if (pc.batch != null
+                    && (maxCalls <= 0 || pendingCalls.get() <= maxCalls)) {
+                pendingChars.addAndGet(-pc.batch.trim(pendingChars.get()
+                        - maxPendingChars));
+                if (!pc.batch.isEmpty()) {
+                    continue;
+                }
+            }
+            if (pc.claim()) {
+                i.remove();
+                pc.index.dropped(pc);
+                sealBatch(pc.call);
+                releaseCapacity(pc.call);
+            }
+        }
+        return true;
+    }
+
+    private boolean isOverLimit(int calls, long chars, long callChars) {
+        int maxCalls = maxPendingCalls;
+        long maxChars = maxPendingChars;
+        if (maxCalls > 0 && calls > maxCalls) {
+            return true;
+        }
+        // A single call larger than the limit is let through alone
+        return maxChars > 0 && chars > maxChars && chars > callChars;
+    }
+
+    private boolean awaitCapacity(long chars) {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+        synchronized (pendingCalls) {
+            // Our own reservation is included in the counters
+            while (isOverLimit(pendingCalls.get(), pendingChars.get(), chars)) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline
+                        - System.nanoTime());
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    pendingCalls.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void releaseCapacity(Object[] call) {
+        releaseCapacity(countChars(call));
+    }
+
+    private void releaseCapacity(long chars) {
+        releaseCapacity(chars, overflowPolicy == OverflowPolicy.BLOCK);
+    }
+
+    private void releaseCapacity(long chars, boolean notify) {
+        pendingCalls.decrementAndGet();
+        pendingChars.addAndGet(-chars);
+        if (notify) {
+            synchronized (pendingCalls) {
+                pendingCalls.notifyAll();
+            }
+        }
+    }
+
+    private Object[] suppressionMarker() {
+        long n = suppressedLines.getAndSet(0);
+        return new Object[] { suppressionMarkerMethod,
+                "[" + n + " lines suppressed]" };
+    }
+
+    private static long countChars(Object[] call) {
+        long n = 0;
+        for (int i = 1; i < call.length; i++) {
+            if (call[i] instanceof String) {
+                n += ((String) call[i]).length();
+            }
+        }
+        return n;
+    }
+
+    private static long countLines(Object[] call) {
+        long n = 0;
+        for (int i = 1; i < call.length; i++) {
+            if (call[i] instanceof String) {
+                String s = (String) call[i];
+                for (int j = s.indexOf('\n'); j >= 0; j = s.indexOf('\n',
+                        j + 1)) {
+                    n++;
+                }
+            }
+        }
+        return n > 0 ? n : 1;
+    }
+
+    /**
+     * Limit the calls of given method by the output limits.
+     * 
+     * @see #setOutputLimit(int, long, OverflowPolicy)
+     * @param method
+     */
+    public void addLimitedMethod(String method) {
+        limitedMethods.add(method);
+    }
+
+    public void removeLimitedMethod(String method) {
+        limitedMethods.remove(method);
+    }
+
+    /**
+     * Limit the number of pending calls and characters of the limited
+     * methods. Non-positive limit means unlimited.
+     * 
+     * @param maxCalls
+     * @param maxChars
+     * @param policy
+     */
+    public void setOutputLimit(int maxCalls, long maxChars,
+            OverflowPolicy policy) {
+        maxPendingCalls = maxCalls;
+        maxPendingChars = maxChars;
+        overflowPolicy = policy != null ? policy : OverflowPolicy.DROP_OLDEST;
+    }
+
+    public int getMaxPendingCalls() {
+        return maxPendingCalls;
+    }
+
+    public long getMaxPendingChars() {
+        return maxPendingChars;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Set how long (in milliseconds) a producer is blocked with
+     * {@link OverflowPolicy#BLOCK} before the oldest calls are dropped.
+     * 
+     * @param blockTimeout
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Merge adjacent calls of the given method into a single call. The calls
+     * must have a single String parameter; the strings are concatenated in
+     * the order they were queued.
+     * 
+     * @param method
+     *            the method name or null to disable merging
+     */
+    public void setCoalescedMethod(String method) {
+        coalescedMethod = method;
+        openBatch = null;
+    }
+
+    public String getCoalescedMethod() {
+        return coalescedMethod;
+    }
+
+    /**
+     * Set the client method used to send the "[N lines suppressed]" marker.
+     * The method gets the marker text as its only parameter.
+     * 
+     * @param method
+     */
+    public void setSuppressionMarkerMethod(String method) {
+        suppressionMarkerMethod = method;
+    }
+
+    /**
+     * Get the number of times the given overflow policy has been applied.
+     * 
+     * @param policy
+     * @return
+     */
+    public long getOverflowCount(OverflowPolicy policy) {
+        return overflowCounts.get(policy.ordinal());
     }
 
     public void requestClientWidgetInit() {
         initSent = false;
         if (!pendingClientInit) {
             pendingClientInit = true;
-            component.requestRepaint();
+            requestRepaint();
         }
     }
 
     public void initClientWidget(Object... params) {
         clientInitParams = params;
         pendingClientInit = false;
-        component.requestRepaint();
+        requestRepaint();
     }
 
     public List<String> getUnsentCalls() {
-        // TODO: Slow. Needed to check if some call is pending.
         ArrayList<String> res = new ArrayList<String>();
-        for (Object[] c : clientCallQueue) {
-            res.add((String) c[0]);
+        for (PendingCall pc : clientCallQueue) {
+            if (pc.index != null && !pc.index.isSuperseded(pc)) {
+                res.add((String) pc.call[0]);
+            }
         }
         return res;
     }
 
+    /**
+     * Check if a call of the given method is waiting to be sent.
+     * 
+     * @param methodName
+     * @return
+     */
+    public boolean isPending(String methodName) {
+        MethodIndex index = callIndex.get(methodName);
+        return index != null && index.isPending();
+    }
+
+    /**
+     * Make the given method "last write wins": a new call replaces the pending
+     * call of the same method instead of being sent in addition to it.
+     * 
+     * @param method
+     */
+    public void addReplaceableMethod(String method) {
+        getIndex(method).replaceable = true;
+    }
+
+    public boolean isReplaceableMethod(String method) {
+        MethodIndex index = callIndex.get(method);
+        return index != null && index.replaceable;
+    }
+
+    /**
+     * Cancel all pending calls of the given method. Cancelled calls are
+     * skipped when the queue is painted. Cancelled calls of a limited method
+     * are removed from the queue at once, so that they no longer count
+     * against the output limit.
+     * 
+     * @param methodName
+     */
     public void cancelCalls(String methodName) {
-        // TODO: Slow. Needed to cancel/replace a pending call with another
-        // call.
-        ArrayList<Object[]> tmp = new ArrayList<Object[]>(clientCallQueue);
-        for (Object[] c : tmp) {
-            if (c[0].equals(methodName)) {
-                clientCallQueue.remove(c);
+        MethodIndex index = callIndex.get(methodName);
+        if (index == null) {
+            return;
+        }
+        index.cancel();
+        if (!limitedMethods.contains(methodName)) {
+            return;
+        }
+        boolean released = false;
+        Iterator<PendingCall> i = clientCallQueue.iterator();
+        while (i.hasNext()) {
+            PendingCall pc = i.next();
+            if (pc.index == index && !pc.isLive() && pc.claim()) {
+                i.remove();
+                index.dropped(pc);
+                sealBatch(pc.call);
+                releaseCapacity(countChars(pc.call), false);
+                released = true;
+            }
+        }
+        if (released) {
+            // Wake up producers blocked by the cancelled calls
+            synchronized (pendingCalls) {
+                pendingCalls.notifyAll();
             }
         }
     }
 
-    public void addStyle(String tagName, String style) {
-        styles.put(tagName, style);
+    /**
+     * Record the text of the given method as it is sent to the client, and
+     * send it again right after the client has been initialized again, for
+     * example after a browser refresh. Calls still pending at that time are
+     * sent after it, so nothing is sent twice. The method must take a single
+     * String parameter.
+     * 
+     * @param method
+     * @param buffer
+     *            the record, or null to stop recording
+     */
+    public void setReplayBuffer(String method, ScrollbackBuffer buffer) {
+        replayMethod = method;
+        replayBuffer = buffer;
     }
 
-    public void removeStyle(String tagName) {
-        styles.remove(tagName);
+    public ScrollbackBuffer getReplayBuffer() {
+        return replayBuffer;
     }
 
-    private String replaceTags(String string) {
-        for (String tagName : styles.keySet()) {
-            String startTag = "\\[" + tagName + "\\]";
-            String startTagReplacement = "<span class=\"" + styles.get(tagName)
-                    + "\">";
-            string = string.replaceAll(startTag, startTagReplacement);
+    /**
+     * Clear the replay buffer when a call of the given method is sent.
+     * 
+     * @param method
+     */
+    public void addReplayClearingMethod(String method) {
+        replayClearingMethods.add(method);
+    }
 
-            String endTag = "\\[/" + tagName + "\\]";
-            String endTagReplacement = "</span>";
-            string = string.replaceAll(endTag, endTagReplacement);
+    /**
+     * Record a line break in the replay buffer when a call of the given
+     * method is sent.
+     * 
+     * @param method
+     */
+    public void addReplayLineBreakMethod(String method) {
+        replayLineBreakMethods.add(method);
+    }
+
+    /**
+     * Record a call sent to the client. Only called by the painting thread.
+     */
+    private void recordSent(Object[] call) {
+        ScrollbackBuffer buffer = replayBuffer;
+        if (buffer == null) {
+            return;
+        }
+        if (call[0].equals(replayMethod) && call.length == 2
+                && call[1] instanceof String) {
+            buffer.append((String) call[1]);
+        } else if (replayLineBreakMethods.contains(call[0])) {
+            buffer.append("\n");
+        } else if (replayClearingMethods.contains(call[0])) {
+            buffer.clear();
         }
+    }
+
+    public void addStyle(String tagName, String style) {
+        synchronized (styles) {
+            styles.put(tagName, style);
+            styleTags = new StyleTags(styles);
+        }
+    }
 
-        return string;
+    public void removeStyle(String tagName) {
+        synchronized (styles) {
+            styles.remove(tagName);
+            styleTags = new StyleTags(styles);
+        }
+    }
+
+    private String replaceTags(String string) {
+        return styleTags.replace(string);
     }
 }
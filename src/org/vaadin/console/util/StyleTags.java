@@ -0,0 +1,144 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled set of style tags.
+ *
+ * Replaces <code>[tag]</code> with <code>&lt;span class="style"&gt;</code> and
+ * <code>[/tag]</code> with <code>&lt;/span&gt;</code> in a single pass. The tag
+ * names are compiled into a trie that is walked from each '[' in the input, so
+ * the cost does not depend on the number of registered styles. Instances are
+ * immutable and can be shared between threads.
+ *
+ */
+public class StyleTags implements Serializable {
+
+    private static final long serialVersionUID = -6323950755059097187L;
+    private static final String END_TAG_REPLACEMENT = "</span>";
+
+    /** Style tags with no styles. */
+    public static final StyleTags EMPTY = new StyleTags(
+            new TreeMap<String, String>());
+
+    private final Node root;
+
+    /**
+     * Compile the given tag name to style class name mapping.
+     *
+     * @param styles
+     */
+    public StyleTags(Map<String, String> styles) {
+        Builder b = new Builder();
+        for (Map.Entry<String, String> e : styles.entrySet()) {
+            if (e.getKey().length() > 0) {
+                b.add(e.getKey(), "<span class=\"" + e.getValue() + "\">");
+            }
+        }
+        root = b.build();
+    }
+
+    public boolean isEmpty() {
+        return root.keys.length == 0;
+    }
+
+    /**
+     * Replace the style tags in the given string.
+     *
+     * @param string
+     * @return the original string if it contains no tags.
+     */
+    public String replace(String string) {
+        if (string == null || isEmpty()) {
+            return string;
+        }
+        StringBuilder out = null;
+        int copied = 0;
+        int len = string.length();
+        int i = string.indexOf('[');
+        while (i >= 0 && i < len - 2) {
+            int end = i + 1;
+            boolean close = string.charAt(end) == '/';
+            if (close) {
+                end++;
+            }
+
+            // Walk the trie until the closing bracket
+            Node n = root;
+            while (n != null && end < len && string.charAt(end) != ']') {
+                n = n.child(string.charAt(end++));
+            }
+
+            if (n != null && end < len && n.replacement != null) {
+                if (out == null) {
+                    out = new StringBuilder(len + 32);
+                }
+                out.append(string, copied, i);
+                out.append(close ? END_TAG_REPLACEMENT : n.replacement);
+                copied = end + 1;
+                i = string.indexOf('[', copied);
+            } else {
+                i = string.indexOf('[', i + 1);
+            }
+        }
+        if (out == null) {
+            return string;
+        }
+        out.append(string, copied, len);
+        return out.toString();
+    }
+
+    private static class Node implements Serializable {
+
+        private static final long serialVersionUID = 5004282000592112683L;
+
+        // Sorted for binary search
+        char[] keys;
+        Node[] children;
+        String replacement;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+    }
+
+    /**
+     * Trie builder using sorted maps that are frozen to arrays.
+     */
+    private static class Builder {
+
+        private final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+        private String replacement;
+
+        void add(String tag, String replacement) {
+            Builder b = this;
+            for (int i = 0; i < tag.length(); i++) {
+                Character c = tag.charAt(i);
+                Builder next = b.children.get(c);
+                if (next == null) {
+                    next = new Builder();
+                    b.children.put(c, next);
+                }
+                b = next;
+            }
+            b.replacement = replacement;
+        }
+
+        Node build() {
+            Node n = new Node();
+            n.replacement = replacement;
+            n.keys = new char[children.size()];
+            n.children = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> e : children.entrySet()) {
+                n.keys[i] = e.getKey();
+                n.children[i++] = e.getValue().build();
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.vaadin.console.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel for many short-lived timeouts.
+ *
+ * Timeouts are hashed by their deadline to the buckets of a fixed size
+ * wheel, which a single worker thread advances one bucket per tick. Only the
+ * timeouts in the current bucket are examined on each tick; timeouts more
+ * than one revolution away wait there for the remaining rounds. Scheduling
+ * and cancelling are constant time and lock-free for the caller: both only
+ * add to a queue the worker drains on its next tick. Timeouts fire up to one
+ * tick late. Tasks run in the worker thread and must not block.
+ *
+ */
+public class TimingWheel {
+
+    // Bound the work per tick if timeouts are scheduled faster than drained
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startTime;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Thread worker;
+    private volatile boolean stopped;
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Owned by the worker thread
+        long remainingRounds;
+        Bucket bucket;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(final TimingWheel wheel, final Runnable task,
+                final long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return false if it has already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        void expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    // Keep the wheel running
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts hashed to one slot.
+     */
+    private static class Bucket {
+
+        Timeout head;
+        Timeout tail;
+
+        void add(final Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = t;
+                tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(final Timeout t) {
+            final Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            } else {
+                head = next;
+            }
+            if (next != null) {
+                next.prev = t.prev;
+            } else {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+    }
+
+    /**
+     * Create a wheel and start its worker thread.
+     *
+     * @param tickDuration
+     * @param unit
+     * @param ticksPerWheel
+     *            number of buckets, rounded up to a power of two
+     * @param threadFactory
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit,
+            final int ticksPerWheel, final ThreadFactory threadFactory) {
+        if (tickDuration <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException(
+                    "Tick duration and wheel size must be positive");
+        }
+        int n = 1;
+        while (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        wheel = new Bucket[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = n - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        startTime = System.nanoTime();
+        worker = threadFactory.newThread(new Runnable() {
+
+            public void run() {
+                work();
+            }
+        });
+        worker.start();
+    }
+
+    /**
+     * Run a task after the given delay unless the returned timeout is
+     * cancelled first.
+     *
+     * @param task
+     * @param delay
+     * @param unit
+     * @return
+     */
+    public Timeout schedule(final Runnable task, final long delay,
+            final TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timing wheel stopped");
+        }
+        final long deadline = System.nanoTime() - startTime
+                + Math.max(0, unit.toNanos(delay));
+        final Timeout t = new Timeout(this, task, deadline);
+        size.incrementAndGet();
+        scheduled.add(t);
+        return t;
+    }
+
+    /**
+     * Get the number of timeouts that have not expired or been cancelled and
+     * removed yet.
+     *
+     * @return
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Stop the worker thread. Pending timeouts never fire.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    private void work() {
+        long tick = 0;
+        while (!stopped) {
+            final long deadline = tickNanos * (tick + 1);
+            final long sleep = startTime + deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    continue; // stopped
+                }
+            }
+            removeCancelled();
+            transferScheduled(tick);
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferScheduled(final long tick) {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            final Timeout t = scheduled.poll();
+            if (t == null) {
+                return;
+            }
+            if (t.isCancelled()) {
+                size.decrementAndGet();
+                continue;
+            }
+            // Deadlines already passed go to the current bucket
+            final long ticks = Math.max(t.deadline / tickNanos, tick);
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void expire(final Bucket bucket, final long deadline) {
+        Timeout t = bucket.head;
+        while (t != null) {
+            if (t.remainingRounds <= 0 && t.deadline <= deadline) {
+                final Timeout next = bucket.remove(t);
+                size.decrementAndGet();
+                t.expire();
+                t = next;
+            } else {
+                t.remainingRounds--;
+                t = t.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.vaadin.console.util;
+
+import java.io.Serializable;
+
+/**
+ * Token bucket rate limiter.
+ *
+ * The bucket holds up to <code>burst</code> tokens and refills at a steady
+ * rate. Each permitted action takes one token. Tokens are refilled lazily
+ * from the elapsed time when the bucket is used, so an idle bucket costs
+ * nothing but its four fields. Not thread-safe.
+ *
+ */
+public class TokenBucket implements Serializable {
+
+    private static final long serialVersionUID = -1695243360262386921L;
+
+    private final int burst;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param ratePerSecond
+     *            tokens added per second
+     * @param burst
+     *            maximum number of tokens
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        this.burst = burst;
+        tokensPerNano = ratePerSecond / 1e9;
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    public double getRatePerSecond() {
+        return tokensPerNano * 1e9;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Get the time until a token is available.
+     *
+     * @param now
+     *            current {@link System#nanoTime()}
+     * @return nanoseconds to wait, 0 if a token is available now
+     */
+    public long getWait(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Take a token if one is available.
+     *
+     * @param now
+     *            current {@link System#nanoTime()}
+     * @return true if a token was taken
+     */
+    public boolean tryTake(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill(long now) {
+        // After deserialization the clock of another JVM may be ahead
+        long elapsed = Math.max(0, now - lastRefill);
+        tokens = Math.min(burst, tokens + elapsed * tokensPerNano);
+        lastRefill = now;
+    }
+}
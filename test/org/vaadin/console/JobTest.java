@@ -0,0 +1,109 @@
+package org.vaadin.console;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs background jobs of an asynchronous console without an application.
+ */
+public class JobTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Semaphore finishedTasks = new Semaphore(0);
+    // Whether a command was running at each prompt
+    private final List<Boolean> prompts = Collections
+            .synchronizedList(new ArrayList<Boolean>());
+    private Console console;
+
+    @Before
+    public void setUp() {
+        console = new Console() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void prompt() {
+                prompts.add(isExecuting());
+                super.prompt();
+            }
+        };
+        console.setAsyncExecution(true);
+        console.setJobControlEnabled(true);
+        console.setCommandExecutor(new Executor() {
+
+            public void execute(final Runnable command) {
+                new Thread(new Runnable() {
+
+                    public void run() {
+                        try {
+                            command.run();
+                        } finally {
+                            finishedTasks.release();
+                        }
+                    }
+                }).start();
+            }
+        });
+        console.addCommand("fg", new Job.FgCommand());
+        console.addCommand("wait", new Console.Command() {
+
+            private static final long serialVersionUID = 1L;
+
+            public Object execute(final Console console, final String[] argv)
+                    throws Exception {
+                release.await();
+                return "released";
+            }
+
+            public String getUsage(final Console console, final String[] argv) {
+                return "";
+            }
+        });
+    }
+
+    private void input(final String line) {
+        final Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("input", line);
+        console.changeVariables(console, variables);
+    }
+
+    private void awaitTasks(final int n) throws InterruptedException {
+        assertTrue(finishedTasks.tryAcquire(n, TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void foregroundRunningJob() throws InterruptedException {
+        input("wait &");
+        assertEquals(1, console.getJobs().size());
+        prompts.clear();
+
+        input("fg %1");
+        awaitTasks(1);
+        // The fg command has finished, the job has not
+        assertTrue(console.isExecuting());
+        assertEquals(0, prompts.size());
+
+        release.countDown();
+        awaitTasks(1);
+        assertFalse(console.isExecuting());
+        assertEquals(Collections.singletonList(false), prompts);
+        assertTrue(console.getJobs().isEmpty());
+    }
+}
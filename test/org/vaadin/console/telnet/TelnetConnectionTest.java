@@ -0,0 +1,238 @@
+package org.vaadin.console.telnet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a TelnetConnection against a scripted server on the loopback
+ * interface.
+ */
+public class TelnetConnectionTest {
+
+    private static final int IAC = TelnetParser.IAC;
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final String PROMPT = "<prompt>";
+
+    private ServerSocket server;
+    private TelnetReactor reactor;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private TelnetConnection connection;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    private final TelnetConnection.Listener listener = new TelnetConnection.Listener() {
+
+        public void connected(TelnetConnection connection) {
+        }
+
+        public void received(TelnetConnection connection, String text) {
+            events.add(text);
+        }
+
+        public void promptReceived(TelnetConnection connection) {
+            events.add(PROMPT);
+        }
+
+        public void disconnected(TelnetConnection connection,
+                IOException cause) {
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        reactor = new TelnetReactor("test-reactor");
+        connection = reactor.connect(
+                new InetSocketAddress(server.getInetAddress(),
+                        server.getLocalPort()), listener,
+                Charset.forName("ISO-8859-1"));
+        socket = server.accept();
+        socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        out = socket.getOutputStream();
+        in = socket.getInputStream();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reactor.shutdown();
+        if (socket != null) {
+            socket.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void textAndPrompts() throws Exception {
+        out.write(bytes("Welcome\r\nna", IAC, IAC, "me: ", IAC,
+                TelnetParser.GA));
+        out.flush();
+        assertEquals("Welcome\nna\u00ffme: ", awaitPrompt());
+
+        out.write(bytes("hp 10", IAC, TelnetParser.EOR));
+        out.flush();
+        assertEquals("hp 10", awaitPrompt());
+    }
+
+    @Test
+    public void negotiationRepliesOnlyToChanges() throws Exception {
+        out.write(bytes(IAC, TelnetParser.WILL, TelnetParser.OPT_ECHO,
+                IAC, TelnetParser.WILL, TelnetParser.OPT_ECHO,
+                IAC, TelnetParser.DO, 24,
+                IAC, TelnetParser.DO, 24,
+                IAC, TelnetParser.WILL, 99,
+                IAC, TelnetParser.WILL, 99,
+                IAC, TelnetParser.DONT, 31,
+                IAC, TelnetParser.WONT, 99,
+                "ready", IAC, TelnetParser.GA));
+        out.flush();
+        assertEquals("ready", awaitPrompt());
+
+        // Replies are queued before the line, so duplicates would show here
+        connection.send("look");
+        assertArrayEquals(bytes(IAC, TelnetParser.DO, TelnetParser.OPT_ECHO,
+                IAC, TelnetParser.WONT, 24,
+                IAC, TelnetParser.DONT, 99,
+                "look\r\n"), read("look\r\n".length() + 9));
+
+        // Disabling an enabled option is acknowledged
+        out.write(bytes(IAC, TelnetParser.WONT, TelnetParser.OPT_ECHO, "x",
+                IAC, TelnetParser.GA));
+        out.flush();
+        assertEquals("x", awaitPrompt());
+        assertArrayEquals(bytes(IAC, TelnetParser.DONT, TelnetParser.OPT_ECHO),
+                read(3));
+    }
+
+    @Test
+    public void userInputEscapesIac() throws Exception {
+        connection.send("a\u00ffb");
+        assertArrayEquals(bytes("a", IAC, IAC, "b\r\n"), read(6));
+    }
+
+    @Test
+    public void compressedStream() throws Exception {
+        out.write(bytes(IAC, TelnetParser.WILL, TelnetParser.OPT_COMPRESS2));
+        out.flush();
+        assertArrayEquals(bytes(IAC, TelnetParser.DO,
+                TelnetParser.OPT_COMPRESS2), read(3));
+
+        // Split inside the compressed data, the end of the stream is
+        // followed by plain data in the same packet
+        final byte[] first = deflate(bytes("Compressed\r\nna", IAC, IAC,
+                "me: ", IAC, TelnetParser.GA));
+        final int half = first.length / 2;
+        out.write(bytes(IAC, TelnetParser.SB, TelnetParser.OPT_COMPRESS2,
+                IAC, TelnetParser.SE));
+        out.write(first, 0, half);
+        out.flush();
+        Thread.sleep(50);
+        out.write(bytes(Arrays.copyOfRange(first, half, first.length),
+                "plain", IAC, TelnetParser.GA));
+        out.flush();
+        assertEquals("Compressed\nna\u00ffme: ", awaitPrompt());
+        assertEquals("plain", awaitPrompt());
+
+        // The server may start compressing again
+        out.write(bytes(IAC, TelnetParser.SB, TelnetParser.OPT_COMPRESS2,
+                IAC, TelnetParser.SE));
+        out.write(deflate(bytes("again", IAC, TelnetParser.EOR)));
+        out.flush();
+        assertEquals("again", awaitPrompt());
+    }
+
+    @Test
+    public void compressionRefusedWhenDisabled() throws Exception {
+        connection.setCompressionEnabled(false);
+        out.write(bytes(IAC, TelnetParser.WILL, TelnetParser.OPT_COMPRESS2,
+                IAC, TelnetParser.SB, TelnetParser.OPT_COMPRESS2, IAC,
+                TelnetParser.SE, "plain", IAC, TelnetParser.GA));
+        out.flush();
+        assertEquals("plain", awaitPrompt());
+        assertArrayEquals(bytes(IAC, TelnetParser.DONT,
+                TelnetParser.OPT_COMPRESS2), read(3));
+    }
+
+    private static byte[] deflate(byte[] data) {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1024];
+        while (!deflater.finished()) {
+            b.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        return b.toByteArray();
+    }
+
+    /**
+     * Wait for the next prompt.
+     *
+     * @return the text received before it
+     */
+    private String awaitPrompt() throws InterruptedException {
+        final StringBuilder text = new StringBuilder();
+        while (true) {
+            final String e = events.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull("Timed out waiting for a prompt", e);
+            if (e == PROMPT) {
+                return text.toString();
+            }
+            text.append(e);
+        }
+    }
+
+    private byte[] read(int len) throws IOException {
+        final byte[] b = new byte[len];
+        int n = 0;
+        while (n < len) {
+            final int r = in.read(b, n, len - n);
+            if (r < 0) {
+                throw new IOException("Connection closed after " + n
+                        + " bytes");
+            }
+            n += r;
+        }
+        return b;
+    }
+
+    /**
+     * Build a byte array of Latin-1 strings, byte arrays and single bytes.
+     */
+    static byte[] bytes(Object... parts) {
+        final ByteArrayOutputStream b = new ByteArrayOutputStream();
+        for (final Object p : parts) {
+            if (p instanceof String) {
+                final byte[] s = ((String) p).getBytes(Charset
+                        .forName("ISO-8859-1"));
+                b.write(s, 0, s.length);
+            } else if (p instanceof byte[]) {
+                b.write((byte[]) p, 0, ((byte[]) p).length);
+            } else {
+                b.write((Integer) p);
+            }
+        }
+        return b.toByteArray();
+    }
+}
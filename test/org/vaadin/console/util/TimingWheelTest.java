@@ -0,0 +1,179 @@
+package org.vaadin.console.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs timeouts on a small wheel with short ticks, so that timeouts go round
+ * it several times.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final int TICKS_PER_WHEEL = 8;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = newWheel(TICK_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    private static TimingWheel newWheel(final long tickMillis) {
+        return new TimingWheel(tickMillis, TimeUnit.MILLISECONDS,
+                TICKS_PER_WHEEL, new ThreadFactory() {
+
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "timing-wheel-test");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        final long end = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (wheel.size() > 0 && System.nanoTime() - end < 0) {
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void expiresAfterSeveralRounds() throws InterruptedException {
+        // Three and a half revolutions
+        final long delay = TICK_MILLIS * TICKS_PER_WHEEL * 7 / 2;
+        final CountDownLatch fired = new CountDownLatch(1);
+        final AtomicLong firedAt = new AtomicLong();
+        final long start = System.nanoTime();
+        final TimingWheel.Timeout t = wheel.schedule(new Runnable() {
+
+            public void run() {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt.get()
+                - start);
+        assertTrue("fired early after " + elapsed + " ms", elapsed >= delay);
+        assertTrue(t.isExpired());
+        assertFalse(t.cancel());
+        awaitEmpty();
+    }
+
+    @Test
+    public void keepsOrderAcrossRounds() throws InterruptedException {
+        final int n = 5;
+        final CountDownLatch fired = new CountDownLatch(n);
+        final StringBuffer order = new StringBuffer();
+        // Later timeouts hash to earlier buckets of later rounds
+        for (int i = n - 1; i >= 0; i--) {
+            final int id = i;
+            wheel.schedule(new Runnable() {
+
+                public void run() {
+                    order.append(id);
+                    fired.countDown();
+                }
+            }, TICK_MILLIS * (TICKS_PER_WHEEL * id + n - id),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("01234", order.toString());
+        awaitEmpty();
+    }
+
+    @Test
+    public void cancelBeforeTransfer() throws InterruptedException {
+        wheel.stop();
+        // The first tick is long after the timeout has been cancelled
+        wheel = newWheel(200);
+        final AtomicInteger runs = new AtomicInteger();
+        final TimingWheel.Timeout t = wheel.schedule(new Runnable() {
+
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.size());
+
+        assertTrue(t.cancel());
+        assertTrue(t.isCancelled());
+        assertFalse(t.cancel());
+        awaitEmpty();
+        Thread.sleep(400);
+        assertEquals(0, runs.get());
+        assertFalse(t.isExpired());
+    }
+
+    @Test
+    public void cancelRacingWithExpire() throws InterruptedException {
+        final int n = 2000;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(n);
+        final TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[n];
+        for (int i = 0; i < n; i++) {
+            final int id = i;
+            timeouts[i] = wheel.schedule(new Runnable() {
+
+                public void run() {
+                    runs.incrementAndGet(id);
+                }
+            }, i % 3 * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        final boolean[] cancelled = new boolean[n];
+        int expected = n;
+        for (int i = 0; i < n; i++) {
+            cancelled[i] = timeouts[i].cancel();
+            if (cancelled[i]) {
+                expected--;
+            }
+            if (i % 100 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        awaitEmpty();
+        // The last tasks may still be running
+        final long end = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (sum(runs) < expected && System.nanoTime() - end < 0) {
+            Thread.sleep(TICK_MILLIS);
+        }
+        for (int i = 0; i < n; i++) {
+            // Exactly one of cancel and expire wins
+            assertEquals("timeout " + i, cancelled[i] ? 0 : 1, runs.get(i));
+            assertEquals(cancelled[i], timeouts[i].isCancelled());
+            assertEquals(!cancelled[i], timeouts[i].isExpired());
+        }
+    }
+
+    private static int sum(final AtomicIntegerArray a) {
+        int n = 0;
+        for (int i = 0; i < a.length(); i++) {
+            n += a.get(i);
+        }
+        return n;
+    }
+}